@@ -0,0 +1,111 @@
+package tdg.bench;
+
+import com.google.common.collect.Lists;
+import pal.alignment.Alignment;
+import pal.tree.Tree;
+import tdg.model.TDGGlobals;
+import tdg.utils.GeneticCode;
+import tdg.utils.PhyloUtils;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data shared by the benchmarks: the influenza PB2 alignment and tree bundled in etc/, with the global parameters
+ * from etc/options_pb2. Benchmarks must be run from the root of the project so the files can be found.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ */
+final class BenchmarkData {
+    static final String ALIGNMENT_FILE = "etc/PB2.co";
+    static final String TREE_FILE = "etc/PB2_FMutSel0.tree";
+    // Same tree, with internal nodes labelled by clade (see tdg.trees.TreeNodeLabeler), for the non-homogeneous model
+    static final String LABELLED_TREE_FILE = "etc/PB2_FMutSel0.tree.out";
+
+    static final String[] CLADES = {"Av", "Hu"};
+
+    private BenchmarkData() {}
+
+    static TDGGlobals getGlobals() {
+        GeneticCode.setCode(GeneticCode.STANDARD_CODE);
+        return new TDGGlobals(1.25010000000000e-02, 7.77498, new double[]{0.22988, 0.18954, 0.37371, 0.20687}, 2.902626667, 0);
+    }
+
+    static String[] getAnalyseArgs(int site, boolean useApprox) {
+        List<String> args = Lists.newArrayList("-t", LABELLED_TREE_FILE, "-s", ALIGNMENT_FILE,
+                "-tau", "1.25010000000000e-02", "-kappa", "7.77498", "-pi", "0.22988,0.18954,0.37371,0.20687",
+                "-mu", "2.902626667", "-gc", "standard", "-site", Integer.toString(site));
+        if (useApprox) args.add("-useapprox");
+        return args.toArray(new String[args.size()]);
+    }
+
+    static Tree readTree(String path) {
+        return PhyloUtils.readTree(path);
+    }
+
+    static Alignment readAlignment() {
+        return PhyloUtils.readAlignment(ALIGNMENT_FILE);
+    }
+
+    /**
+     * The codons at a site, with stop codons treated as gaps (as SiteAnalyser does)
+     */
+    static Map<String, Integer> getSitePattern(Alignment alignment, int site) {
+        GeneticCode gc = GeneticCode.getInstance();
+        Map<String, Integer> sitePattern = PhyloUtils.getCodonsAtSite(alignment, site);
+        for (Map.Entry<String, Integer> e : sitePattern.entrySet()) {
+            if (gc.isUnknownCodonState(gc.getAminoAcidIndexFromCodonIndex(e.getValue()))) {
+                e.setValue(GeneticCode.UNKNOWN_STATE);
+            }
+        }
+        return sitePattern;
+    }
+
+    /**
+     * The residues to model at a site: those observed and, unless using the approximation, the rest in canonical order
+     */
+    static List<Integer> getAminoAcids(Map<String, Integer> sitePattern, boolean useApprox) {
+        List<Integer> aminoAcids = PhyloUtils.getDistinctAminoAcids(sitePattern.values());
+        if (!useApprox) {
+            for (int i = 0; i < GeneticCode.AMINO_ACID_STATES; i++) {
+                if (!aminoAcids.contains(i)) aminoAcids.add(i);
+            }
+        }
+        return aminoAcids;
+    }
+
+    /**
+     * A set of amino acids encoded by exactly this many sense codons. Residues are added in order of decreasing number of
+     * codons, so for the standard code the possible sizes include 6, 12, 22, 41 and 61.
+     */
+    static List<Integer> getAminoAcidsForMatrixSize(int matrixSize) {
+        List<Integer> byCodons = Lists.newArrayList();
+        for (int i = 0; i < GeneticCode.AMINO_ACID_STATES; i++) byCodons.add(i);
+        Collections.sort(byCodons, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return getCodonCount(b) - getCodonCount(a);
+            }
+        });
+
+        List<Integer> aminoAcids = Lists.newArrayList();
+        int size = 0;
+        for (int aminoAcid : byCodons) {
+            if (size >= matrixSize) break;
+            aminoAcids.add(aminoAcid);
+            size += getCodonCount(aminoAcid);
+        }
+
+        if (size != matrixSize) {
+            throw new IllegalArgumentException("No set of amino acids is encoded by exactly " + matrixSize + " codons.");
+        }
+
+        return aminoAcids;
+    }
+
+    private static int getCodonCount(int aminoAcid) {
+        return PhyloUtils.getCodonsFromAminoAcids(Collections.singletonList(aminoAcid)).size();
+    }
+}
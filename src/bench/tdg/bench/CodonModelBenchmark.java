@@ -0,0 +1,84 @@
+package tdg.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tdg.model.Fitness;
+import tdg.model.TDGCodonModel;
+import tdg.utils.GeneticCode;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the TDG codon model (Q and its eigen decomposition) and calculating P(t) from it, for a range of matrix
+ * sizes. A matrix size of 61 is the full model for the standard genetic code; smaller sizes are what -useapprox gives
+ * at sites with few observed residues.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodonModelBenchmark {
+    @Param({"6", "12", "22", "41", "61"})
+    public int matrixSize;
+
+    private TDGCodonModel model;
+    private double[] matrix;
+    private double branchLength;
+
+    @Setup
+    public void setup() {
+        List<Integer> aminoAcids = BenchmarkData.getAminoAcidsForMatrixSize(matrixSize);
+
+        // Fixed, but not flat, fitnesses so every run does the same work
+        Random random = new Random(1);
+        double[] f = new double[aminoAcids.size()];
+        for (int i = 1; i < f.length; i++) f[i] = random.nextDouble() * 4 - 2;
+
+        model = new TDGCodonModel(BenchmarkData.getGlobals(), new Fitness(f, true), aminoAcids);
+        model.updateModel();
+
+        matrix = new double[GeneticCode.CODON_STATES * GeneticCode.CODON_STATES];
+        branchLength = 0.01;
+    }
+
+    @Benchmark
+    public TDGCodonModel updateModel() {
+        model.updateModel();
+        return model;
+    }
+
+    /**
+     * A new branch length every call, so P(t) is always calculated (once the model's store of matrices is full, they
+     * are no longer kept)
+     */
+    @Benchmark
+    public double[] getProbabilityMatrix() {
+        branchLength += 1e-9;
+        model.getProbabilityMatrix(matrix, branchLength);
+        return matrix;
+    }
+
+    /**
+     * The same branch length every call, i.e. only the lookup and copy into the 64 x 64 matrix
+     */
+    @Benchmark
+    public double[] getProbabilityMatrixRepeated() {
+        model.getProbabilityMatrix(matrix, 0.01);
+        return matrix;
+    }
+}
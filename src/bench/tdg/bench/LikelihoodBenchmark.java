@@ -0,0 +1,93 @@
+package tdg.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pal.alignment.Alignment;
+import tdg.model.Fitness;
+import tdg.model.LikelihoodCalculator;
+import tdg.model.Parameter;
+import tdg.model.TDGCodonModel;
+import tdg.model.TDGGlobals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One evaluation of the likelihood function at a site, as made by the optimiser: set the fitness parameters, rebuild
+ * the model(s) and prune the tree. The "hostshift" model has a clade model for each of the avian and human clades, so
+ * the branches where the clade changes use both.
+ * <p/>
+ * LikelihoodCalculator only recalculates what changed since the last call, so each call alternates between two sets of
+ * parameters: every model changes and the whole tree is pruned each time.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LikelihoodBenchmark {
+    @Param({"homogeneous", "hostshift"})
+    public String model;
+
+    @Param({"9"})
+    public int site;
+
+    @Param({"true", "false"})
+    public boolean useApprox;
+
+    private LikelihoodCalculator calculator;
+    private double[][] parameters;
+    private int call;
+
+    @Setup
+    public void setup() {
+        TDGGlobals globals = BenchmarkData.getGlobals();
+        Alignment alignment = BenchmarkData.readAlignment();
+        Map<String, Integer> sitePattern = BenchmarkData.getSitePattern(alignment, site);
+        List<Integer> aminoAcids = BenchmarkData.getAminoAcids(sitePattern, useApprox);
+
+        Random random = new Random(1);
+
+        if (model.equals("homogeneous")) {
+            calculator = new LikelihoodCalculator(BenchmarkData.readTree(BenchmarkData.TREE_FILE), sitePattern, null);
+            Fitness f = new Fitness(new double[aminoAcids.size()], true);
+            calculator.addCladeModel("ALL", new TDGCodonModel(globals, f, aminoAcids));
+            calculator.setParameters(f);
+        } else {
+            calculator = new LikelihoodCalculator(BenchmarkData.readTree(BenchmarkData.LABELLED_TREE_FILE), sitePattern, null);
+            Parameter[] fitnesses = new Parameter[BenchmarkData.CLADES.length];
+            for (int i = 0; i < BenchmarkData.CLADES.length; i++) {
+                Fitness f = new Fitness(new double[aminoAcids.size()], true);
+                calculator.addCladeModel(BenchmarkData.CLADES[i], new TDGCodonModel(globals, f, aminoAcids));
+                fitnesses[i] = f;
+            }
+            calculator.setParameters(fitnesses);
+        }
+
+        // The first fitness of each model is fixed, so one fewer parameter per model
+        int models = model.equals("homogeneous") ? 1 : BenchmarkData.CLADES.length;
+        parameters = new double[2][models * (aminoAcids.size() - 1)];
+        for (double[] p : parameters) {
+            for (int i = 0; i < p.length; i++) p[i] = random.nextDouble() * 4 - 2;
+        }
+    }
+
+    @Benchmark
+    public double function() {
+        return calculator.function(parameters[call++ & 1]);
+    }
+}
@@ -0,0 +1,68 @@
+package tdg.bench;
+
+import com.beust.jcommander.JCommander;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pal.alignment.Alignment;
+import pal.tree.Tree;
+import tdg.SiteAnalyser;
+import tdg.cli.AnalyseOptions;
+import tdg.model.TDGGlobals;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The complete analysis of a site, as run by tdg.Analyse: optimising the homogeneous model and then, with
+ * -heteroclades, the non-homogeneous model. Without -useapprox a site takes minutes, so only the approximation is
+ * benchmarked by default (use -p useApprox=false to override).
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SiteAnalyserBenchmark {
+    @Param({"9"})
+    public int site;
+
+    @Param({"true"})
+    public boolean useApprox;
+
+    @Param({"false", "true"})
+    public boolean heteroClades;
+
+    private AnalyseOptions options;
+    private TDGGlobals globals;
+    private Tree tree;
+    private Alignment alignment;
+
+    @Setup
+    public void setup() {
+        options = new AnalyseOptions();
+        new JCommander(options, BenchmarkData.getAnalyseArgs(site, useApprox));
+        if (heteroClades) options.heteroClades = BenchmarkData.CLADES[0] + "," + BenchmarkData.CLADES[1];
+
+        globals = BenchmarkData.getGlobals();
+        tree = BenchmarkData.readTree(BenchmarkData.LABELLED_TREE_FILE);
+        alignment = BenchmarkData.readAlignment();
+    }
+
+    @Benchmark
+    public SiteAnalyser run() {
+        SiteAnalyser sa = new SiteAnalyser(tree, alignment, globals, site, options);
+        sa.run();
+        return sa;
+    }
+}
@@ -0,0 +1,80 @@
+package tdg.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scalar and Vector API kernels of ProbabilityMatrixKernel for each matrix size: P(t) from the eigen decomposition
+ * (a matrix-matrix product), and the product of P(t) and a conditional (matrix-vector), as LikelihoodCalculator does
+ * for every branch. In package tdg.model because the kernels are package-private.
+ * <p/>
+ * The vector kernel needs Java 16 or later, with the benchmarks built from src/vector too.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ProbabilityMatrixKernelBenchmark {
+    @Param({"4", "8", "12", "22", "41", "60", "61"})
+    public int matrixSize;
+
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    private ProbabilityMatrixKernel k;
+    private double[] lambda, U, UInv, Pt, conditional, branchConditional;
+
+    @Setup
+    public void setup() {
+        k = kernel.equals("vector") ? ProbabilityMatrixKernel.vectorForSize(matrixSize) : ProbabilityMatrixKernel.scalarForSize(matrixSize);
+        if (k == null) throw new IllegalStateException("The Vector API kernel isn't available on this JVM.");
+
+        int n = matrixSize;
+        Random random = new Random(1);
+        lambda = new double[n];
+        U = new double[n * n];
+        UInv = new double[n * n];
+        Pt = new double[n * n];
+        conditional = new double[n];
+        branchConditional = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            lambda[i] = -random.nextDouble() * 10;
+            conditional[i] = random.nextDouble();
+        }
+        for (int i = 0; i < n * n; i++) {
+            U[i] = random.nextDouble() * 2 - 1;
+            UInv[i] = random.nextDouble() * 2 - 1;
+        }
+
+        k.probabilityMatrix(Pt, 0.01, lambda, U, UInv);
+    }
+
+    @Benchmark
+    public double[] probabilityMatrix() {
+        k.probabilityMatrix(Pt, 0.01, lambda, U, UInv);
+        return Pt;
+    }
+
+    @Benchmark
+    public double[] multiply() {
+        k.multiply(Pt, conditional, branchConditional, matrixSize);
+        return branchConditional;
+    }
+}
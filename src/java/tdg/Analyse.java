@@ -2,17 +2,31 @@ package tdg;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
-import com.google.common.collect.Sets;
-import pal.alignment.Alignment;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
 import pal.tree.Tree;
 import tdg.cli.AnalyseOptions;
 import tdg.model.TDGGlobals;
+import tdg.results.ResultsFileWriter;
+import tdg.results.SiteResult;
+import tdg.results.SiteResultSink;
+import tdg.utils.CodonAlignment;
+import tdg.utils.CoreUtils;
+import tdg.utils.GeneticCode;
 import tdg.utils.PhyloUtils;
+import tdg.utils.ValueComparer;
 
-import java.util.Set;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 
 /**
@@ -25,18 +39,23 @@ import java.util.concurrent.Future;
  */
 public class Analyse {
     AnalyseOptions options;
+    private SiteResultSink resultSink;
+    private AnalyseCheckpoint checkpoint;
 
     public Analyse(AnalyseOptions options) {
         this.options = options;
     }
 
-    public static void main(String... args) {
+    public static void main(String... args) throws Exception {
         AnalyseOptions options = new AnalyseOptions();
         JCommander jc = new JCommander(options);
         jc.setProgramName("java -cp " + Constants.PROGRAM_JAR + " tdg.Analyse ");
 
         try {
             jc.parse(args);
+            if (options.resume && options.checkpointFile == null) {
+                throw new ParameterException("-resume needs the -checkpoint file of the run to resume.");
+            }
         } catch (ParameterException pe) {
             System.out.printf("Error: %s\n\n", pe.getMessage());
             jc.usage();
@@ -49,19 +68,19 @@ public class Analyse {
         analyse.run();
     }
 
-    private void run() {
+    private void run() throws IOException {
         long startTime = System.currentTimeMillis();
 
         // Global parameters for the TdG model
         final TDGGlobals tdgGlobals = new TDGGlobals(options.globals.tau, options.globals.kappa, options.globals.pi, options.globals.mu, options.globals.gamma);
         System.out.printf("tdg.Analyse - %s\n", tdgGlobals.toString());
         final Tree tree = PhyloUtils.readTree(options.treeFile);
-        final Alignment alignment = PhyloUtils.readAlignment(options.alignmentFile);
-        final int sites = alignment.getSiteCount() / 3; // Alignment object is a nucleotide alignment
-        System.out.printf("tdg.Analyse - %s alignment file has %s sequences, each with %s codon sites.\n", options.alignmentFile, alignment.getSequenceCount(), sites);
+        final CodonAlignment alignment = PhyloUtils.readCodonAlignment(options.alignmentFile, tree);
+        final int sites = alignment.getSiteCount();
+        System.out.printf("tdg.Analyse - %s alignment file has %s sequences, each with %s codon sites.\n", options.alignmentFile, alignment.getTaxonCount(), sites);
 
-        // Something to collect results from the analysis of each site
-        Set<Future<double[]>> results = Sets.newHashSet();
+        // Something to collect results from the analysis of each site, in site order
+        SortedMap<Integer, Future<double[]>> results = Maps.newTreeMap();
 
         // By default, we analyse the entire alignment
         int startSite = 1;
@@ -79,19 +98,55 @@ public class Analyse {
 
         System.out.printf("tdg.Analyse - Analysing location(s) %s to %s\n", startSite, endSite);
 
+        // Sites completed by a previous run of this analysis
+        Map<Integer, double[]> completed = Maps.newHashMap();
+
+        if (options.checkpointFile != null) {
+            if (options.resume) {
+                completed = AnalyseCheckpoint.read(options.checkpointFile);
+                System.out.printf("tdg.Analyse - Resuming from %s, which has %s completed site(s).\n", options.checkpointFile, completed.size());
+            }
+            checkpoint = new AnalyseCheckpoint(options.checkpointFile, options.resume);
+        }
+
+        if (options.resultsFile != null) {
+            resultSink = new ResultsFileWriter(options.resultsFile, options.resume);
+            System.out.printf("tdg.Analyse - Writing site results to %s\n", options.resultsFile);
+        }
+
+        List<Integer> remainingSites = Lists.newArrayList();
+        for (int site = startSite; site <= endSite; site++) {
+            if (completed.containsKey(site)) {
+                results.put(site, Futures.immediateFuture(completed.get(site)));
+            } else {
+                remainingSites.add(site);
+            }
+        }
+
         final int threads = options.threads; // Runtime.getRuntime().availableProcessors();
-        final ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        // A work-stealing pool in FIFO mode: sites start in the order submitted, and idle threads can steal work forked
+        // by busy sites (e.g. -parallelruns)
+        final ForkJoinPool threadPool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
         System.out.printf("tdg.Analyse - Running with %s thread(s).\n", threads);
 
-        // Add each site analysis to the thread pool
-        for (int site = startSite; site <= endSite; site++) {
-            Future<double[]> future = threadPool.submit(new SiteAnalyserThread(site, tree, alignment, tdgGlobals, options));
-            results.add(future);
+        // Sites with identical codons in every sequence have identical results, so each pattern is only analysed once
+        Map<List<Integer>, List<Integer>> sitesByPattern = getSitesByPattern(alignment, remainingSites);
+        System.out.printf("tdg.Analyse - %s site(s) to analyse have %s unique codon pattern(s).\n", remainingSites.size(), sitesByPattern.size());
+
+        Map<Integer, List<Integer>> patternSites = Maps.newHashMap();
+        for (List<Integer> patternSiteList : sitesByPattern.values()) patternSites.put(patternSiteList.get(0), patternSiteList);
+
+        // Add each pattern analysis to the thread pool, most expensive first, so a long site doesn't start last. Every
+        // site with the pattern gets the same result, so the pattern's lnL is counted once for each site in the totals
+        for (int site : getSitesByCost(alignment, patternSites.keySet())) {
+            List<Integer> sharedSites = patternSites.get(site);
+            Future<double[]> future = threadPool.submit(new SiteAnalyserThread(site, sharedSites.subList(1, sharedSites.size()), tree, alignment, tdgGlobals, options));
+            for (int sharedSite : sharedSites) results.put(sharedSite, future);
         }
 
         // Collect the results of the analysis
         double sumHomLnl = 0, sumNonHomLnl = 0;
-        for (Future<double[]> future : results) {
+        for (Future<double[]> future : results.values()) {
             try {
                 sumHomLnl += future.get()[0];
                 sumNonHomLnl += future.get()[1];
@@ -107,17 +162,78 @@ public class Analyse {
         System.out.printf("tdg.Analyse - Total non-homogeneous lnL: %s\n", sumNonHomLnl);
         System.out.printf("tdg.Analyse - Total time: %s ms (%.2f m).\n", endTime - startTime, (endTime - startTime) / 60000.0);
         threadPool.shutdown();
+
+        if (resultSink != null) resultSink.close();
+        if (checkpoint != null) checkpoint.close();
+    }
+
+    /**
+     * Groups sites that have the same codon in every sequence.
+     *
+     * @return the sites with each distinct codon pattern, in site order, keyed by the pattern
+     */
+    private Map<List<Integer>, List<Integer>> getSitesByPattern(CodonAlignment alignment, Collection<Integer> sites) {
+        Map<List<Integer>, List<Integer>> sitesByPattern = Maps.newLinkedHashMap();
+
+        for (int site : sites) {
+            List<Integer> sitePattern = Ints.asList(alignment.getSite(site));
+            List<Integer> patternSites = sitesByPattern.get(sitePattern);
+            if (patternSites == null) {
+                patternSites = Lists.newArrayList();
+                sitesByPattern.put(sitePattern, patternSites);
+            }
+            patternSites.add(site);
+        }
+
+        return sitesByPattern;
+    }
+
+    /**
+     * Orders sites by their estimated analysis cost, descending. The cost of one likelihood evaluation grows with the
+     * number of taxa and the cube of the Q matrix size, and the number of evaluations grows with the number of codons
+     * observed at the site.
+     *
+     * @return site positions, the most expensive first
+     */
+    private Collection<Integer> getSitesByCost(CodonAlignment alignment, Collection<Integer> sites) {
+        Map<Integer, Long> siteCost = Maps.newHashMap();
+
+        // Without the approximation, every site uses the full codon matrix
+        int fullMatrixSize = PhyloUtils.getCodonsFromAminoAcids(Ints.asList(CoreUtils.range(0, GeneticCode.AMINO_ACID_STATES))).size();
+
+        for (int site : sites) {
+            List<Integer> sitePattern = Ints.asList(alignment.getSite(site));
+
+            int taxa = 0;
+            for (int codon : sitePattern)
+                if (!GeneticCode.getInstance().isUnknownAminoAcidState(GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(codon))) taxa++;
+
+            long observedCodons = PhyloUtils.getCodonsFromAminoAcids(PhyloUtils.getDistinctAminoAcids(sitePattern)).size();
+            long matrixSize = options.approx.useapprox ? observedCodons : fullMatrixSize;
+
+            siteCost.put(site, taxa * matrixSize * matrixSize * matrixSize * Math.max(observedCodons, 1));
+        }
+
+        SortedMap<Integer, Long> siteCostDesc = new TreeMap<Integer, Long>(new ValueComparer<Integer, Long>(siteCost));
+        siteCostDesc.putAll(siteCost);
+
+        return siteCostDesc.keySet();
     }
 
     private class SiteAnalyserThread implements Callable<double[]> {
         private final int site;
+        private final List<Integer> sharedSites;
         private final TDGGlobals globals;
-        private final Alignment alignment;
+        private final CodonAlignment alignment;
         private final Tree tree;
         private final AnalyseOptions options;
 
-        SiteAnalyserThread(int site, Tree tree, Alignment alignment, TDGGlobals globals, AnalyseOptions options) {
+        /**
+         * @param sharedSites other sites with the same codon pattern as this site, which are given this site's results
+         */
+        SiteAnalyserThread(int site, List<Integer> sharedSites, Tree tree, CodonAlignment alignment, TDGGlobals globals, AnalyseOptions options) {
             this.site = site;
+            this.sharedSites = sharedSites;
             this.tree = tree;
             this.alignment = alignment;
             this.globals = globals;
@@ -125,11 +241,43 @@ public class Analyse {
         }
 
         @Override
-        public double[] call() {
+        public double[] call() throws IOException {
+            final List<SiteResult> siteResults = Lists.newArrayList();
+
             SiteAnalyser sa = new SiteAnalyser(tree, alignment, globals, site, options);
+            sa.setResultSink(new SiteResultSink() {
+                @Override
+                public void write(List<SiteResult> results) {
+                    siteResults.addAll(results);
+                }
+
+                @Override
+                public void close() {
+                }
+            });
             sa.run();
-            System.out.printf("Site %s - Done. Homogeneous lnL = %s. Non-homogeneous lnL = %s\n", this.site, sa.getHomogeneousLikelihood(), sa.getHeterogeneousLikelihood());
-            return new double[]{sa.getHomogeneousLikelihood(), sa.getHeterogeneousLikelihood()};
+
+            double homLnl = sa.getHomogeneousLikelihood();
+            double nonHomLnl = sa.getHeterogeneousLikelihood();
+            System.out.printf("Site %s - Done. Homogeneous lnL = %s. Non-homogeneous lnL = %s\n", this.site, homLnl, nonHomLnl);
+            if (resultSink != null) resultSink.write(siteResults);
+            if (checkpoint != null) checkpoint.completed(site, homLnl, nonHomLnl);
+
+            for (int sharedSite : sharedSites) {
+                List<SiteResult> sharedResults = Lists.newArrayListWithCapacity(siteResults.size());
+                for (SiteResult r : siteResults) {
+                    sharedResults.add(new SiteResult(sharedSite, r.getModel(), r.getLnL(), r.getFitness(), r.getPi(), r.getTime()));
+                    if (r.isHomogeneous()) {
+                        System.out.printf("Site %s - Fitness: { %s }\n", sharedSite, Doubles.join(", ", r.getFitness()));
+                    }
+                }
+
+                System.out.printf("Site %s - Done. Same codons as site %s. Homogeneous lnL = %s. Non-homogeneous lnL = %s\n", sharedSite, site, homLnl, nonHomLnl);
+                if (resultSink != null) resultSink.write(sharedResults);
+                if (checkpoint != null) checkpoint.completed(sharedSite, homLnl, nonHomLnl);
+            }
+
+            return new double[]{homLnl, nonHomLnl};
         }
     }
 }
@@ -0,0 +1,93 @@
+package tdg;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * An append-only record of the sites that tdg.Analyse has finished, so that a killed run can be resumed without
+ * repeating them. Each line holds a site and its homogeneous and non-homogeneous log-likelihoods, tab-separated, and
+ * is flushed as soon as the site completes.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see Analyse
+ */
+class AnalyseCheckpoint {
+    private final Writer out;
+
+    /**
+     * @param path   the checkpoint file
+     * @param append keep the sites already in the file (i.e. we're resuming), otherwise start a new file
+     */
+    AnalyseCheckpoint(String path, boolean append) throws IOException {
+        if (append) truncateToLastLine(path);
+        this.out = new OutputStreamWriter(new FileOutputStream(path, append), Charsets.US_ASCII);
+    }
+
+    /**
+     * Reads the completed sites from a checkpoint file. A line that was only partly written (e.g. the run was killed
+     * while writing it) is ignored, so that site will be analysed again.
+     *
+     * @return map of site to {homogeneous lnL, non-homogeneous lnL}; empty if the file doesn't exist
+     */
+    static Map<Integer, double[]> read(String path) throws IOException {
+        Map<Integer, double[]> completed = Maps.newHashMap();
+
+        File file = new File(path);
+        if (!file.exists()) return completed;
+
+        BufferedReader reader = Files.newReader(file, Charsets.US_ASCII);
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split("\t");
+            if (parts.length != 3) continue;
+
+            try {
+                completed.put(Integer.parseInt(parts[0]), new double[]{Double.parseDouble(parts[1]), Double.parseDouble(parts[2])});
+            } catch (NumberFormatException e) {
+                // partly written line
+            }
+        }
+
+        reader.close();
+
+        return completed;
+    }
+
+    /**
+     * Drop a partly written last line, so new lines don't get appended to it
+     */
+    private static void truncateToLastLine(String path) throws IOException {
+        if (!new File(path).exists()) return;
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        long end = file.length();
+        while (end > 0) {
+            file.seek(end - 1);
+            if (file.read() == '\n') break;
+            end--;
+        }
+        file.setLength(end);
+        file.close();
+    }
+
+    synchronized void completed(int site, double homogeneousLnL, double heterogeneousLnL) throws IOException {
+        // Double.toString() gives the shortest string that parses back to the same value
+        out.write(site + "\t" + Double.toString(homogeneousLnL) + "\t" + Double.toString(heterogeneousLnL) + "\n");
+        out.flush();
+    }
+
+    synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -31,6 +31,13 @@ public class Constants {
      */
     public static final int MAX_EVALUATIONS = 10000;
 
+    /**
+     * With -lbfgs: the number of recent steps L-BFGS keeps, and stop when no element of the projected gradient of the
+     * log-likelihood is larger than GRADIENT_TOL (or the log-likelihood improves by less than CONVERGENCE_TOL).
+     */
+    public static final int LBFGS_MEMORY = 10;
+    public static final double GRADIENT_TOL = 1E-4;
+
     /**
      * To constrain MLE of fitness within FITNESS_BOUND, return this log-likelihood if we step outside of bounds.
      */
@@ -43,11 +50,30 @@ public class Constants {
     public static final double SCALING_THRESHOLD = 1e-15;
     public static final int SCALING_NODE_STEP = 5;
 
+    /**
+     * Instead, check every node and scale by a power of two (exactly, with no rounding), keeping the integer exponents
+     * so the log-likelihood needs a single multiplication by log(2) rather than a log per scaled node.
+     */
+    public static final boolean SCALING_BY_EXPONENT = true;
+
     /**
      * How to split the branch connecting heterogeneous models (e.g. 0.5 = half-way).
      */
     public static final double CLADE_BRANCH_SPLIT = 0.5;
 
+    /**
+     * Each codon model keeps up to this many P(t) matrices (keyed by branch length) between parameter updates, and
+     * no more than PROBABILITY_MATRIX_CACHE_DOUBLES doubles in total.
+     */
+    public static final int PROBABILITY_MATRIX_CACHE_SIZE = 1024;
+    public static final int PROBABILITY_MATRIX_CACHE_DOUBLES = 1 << 19;
+
+    /**
+     * How many sets of global parameters the shared models of conserved sites are kept for, at least as many as the
+     * points a Master evaluates in one batch.
+     */
+    public static final int CONSERVED_SITE_INSTANCES = 16;
+
     /**
      * The filenames for parsed results files.
      */
@@ -5,7 +5,9 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 import org.apache.commons.math.FunctionEvaluationException;
+import org.apache.commons.math.analysis.MultivariateRealFunction;
 import org.apache.commons.math.optimization.GoalType;
 import org.apache.commons.math.optimization.RealConvergenceChecker;
 import org.apache.commons.math.optimization.RealPointValuePair;
@@ -19,14 +21,23 @@ import pal.alignment.Alignment;
 import pal.tree.Tree;
 import tdg.cli.AnalyseOptions;
 import tdg.model.*;
+import tdg.optim.BoundedLBFGS;
+import tdg.optim.DifferentiableFunction;
 import tdg.optim.LikelihoodFunctionWrapper;
+import tdg.results.SiteResult;
+import tdg.results.SiteResultSink;
+import tdg.utils.CodonAlignment;
 import tdg.utils.GeneticCode;
 import tdg.utils.PhyloUtils;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Performs the MLE for a single site, calling the likelihood function. (i.e. optimising the fitness parameters for
@@ -39,6 +50,9 @@ import java.util.Map;
  * @see TDGCodonModel
  */
 public class SiteAnalyser {
+    // For running optimisation runs in parallel, shared by all sites (see optimiseInParallel)
+    private static ForkJoinPool optimisationPool;
+
     private double homogeneousLikelihood;
     private double heterogeneousLikelihood;
     private double[] fitnessOptima;
@@ -48,27 +62,39 @@ public class SiteAnalyser {
     private final int site;
     private final AnalyseOptions options;
     private final RandomData randomData = new RandomDataImpl(new MersenneTwister());
-    private final Map<String, Integer> sitePattern;
+    private final int[] tipStates;
     public final List<Integer> aminoAcidsAtSite;
     private final int observedResidueCount;
     public LikelihoodCalculator homogeneousModel;
+    private SiteResultSink resultSink;
 
     public SiteAnalyser(Tree tree, Alignment alignment, TDGGlobals globals, int site, AnalyseOptions options) {
+        this(tree, PhyloUtils.getTipStates(tree, PhyloUtils.getCodonsAtSite(alignment, site)), globals, site, options);
+    }
+
+    /**
+     * @param alignment a codon alignment with the taxa in the order of the tree's tips (see PhyloUtils.readCodonAlignment)
+     */
+    public SiteAnalyser(Tree tree, CodonAlignment alignment, TDGGlobals globals, int site, AnalyseOptions options) {
+        this(tree, alignment.getSite(site), globals, site, options);
+    }
+
+    private SiteAnalyser(Tree tree, int[] tipStates, TDGGlobals globals, int site, AnalyseOptions options) {
         this.tree = tree;
         // this.alignment = alignment;
         this.globals = globals;
         this.site = site;
         this.options = options;
 
-        // Get the codons observed at this site
-        sitePattern = PhyloUtils.getCodonsAtSite(alignment, site);
+        // The codons observed at this site, for each tip of the tree
+        this.tipStates = tipStates;
 
         // Remove any stop codons and treat them as gaps
         int unknowns = 0;
-        for (Map.Entry<String, Integer> e : sitePattern.entrySet()) {
-            if (GeneticCode.getInstance().isUnknownCodonState(GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(e.getValue()))) {
-                // System.out.printf("Site %s - Sequence %s has unknown/stop codon (%s). Treating as gap.\n", site, e.getKey(), GeneticCode.getInstance().getCodonTLA(e.getValue()));
-                sitePattern.put(e.getKey(), GeneticCode.UNKNOWN_STATE);
+        for (int i = 0; i < tipStates.length; i++) {
+            if (GeneticCode.getInstance().isUnknownCodonState(GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(tipStates[i]))) {
+                // System.out.printf("Site %s - Sequence %s has unknown/stop codon (%s). Treating as gap.\n", site, i, GeneticCode.getInstance().getCodonTLA(tipStates[i]));
+                tipStates[i] = GeneticCode.UNKNOWN_STATE;
                 unknowns++;
             }
         }
@@ -78,7 +104,7 @@ public class SiteAnalyser {
         }
 
         // Get a list of all amino acids observed at this site (from the given codons)
-        aminoAcidsAtSite= PhyloUtils.getDistinctAminoAcids(sitePattern.values());
+        aminoAcidsAtSite= PhyloUtils.getDistinctAminoAcids(Ints.asList(tipStates));
 
         observedResidueCount = aminoAcidsAtSite.size();
 
@@ -96,7 +122,12 @@ public class SiteAnalyser {
     }
 
     public double evaluate(final TDGGlobals g) {
-        homogeneousModel = new LikelihoodCalculator(tree, sitePattern, options.prior);
+        if (aminoAcidsAtSite.size() == 1) {
+            double l = ConservedSiteLikelihood.getInstance(tree, g).function(tipStates, aminoAcidsAtSite.get(0));
+            return options.prior != null ? l + options.prior.calculate(new double[]{}) : l;
+        }
+
+        homogeneousModel = new LikelihoodCalculator(tree, tipStates, options.prior);
         Fitness f = new Fitness(getFitnessOptima(), false);
         homogeneousModel.setParameters(f);
         homogeneousModel.addCladeModel("ALL", new TDGCodonModel(g, f, aminoAcidsAtSite));
@@ -109,8 +140,14 @@ public class SiteAnalyser {
         long startTime = System.currentTimeMillis();
         // TODO: Use specified initial fitness for a site from e.g. a file. Would be good for global parameter optimisation.
 
+        // Single residue observed at this site - there's nothing to optimise
+        if (aminoAcidsAtSite.size() == 1) {
+            runConserved(startTime);
+            return;
+        }
+
         // ********************* HOMOGENEOUS MODEL *****************************
-        homogeneousModel = new LikelihoodCalculator(tree, sitePattern, options.prior);
+        homogeneousModel = new LikelihoodCalculator(tree, tipStates, options.prior);
 
         // An object for the fitnesses we want to estimate
         Fitness homogeneousFitness = new Fitness(new double[aminoAcidsAtSite.size()], true);
@@ -124,7 +161,14 @@ public class SiteAnalyser {
         int runs = options.optimRuns;
         Map<String, RealPointValuePair> optimiseRuns = Maps.newHashMap();
 
-        for (int i = 0; i < runs; i++) {
+        if (options.parallelRuns && runs > 1) {
+            // Each run gets its own model, and they all run at the same time
+            for (RealPointValuePair r : optimiseInParallel(runs)) {
+                String key = String.format("%.3f", r.getValue());
+                if (!optimiseRuns.containsKey(key)) optimiseRuns.put(key, r);
+            }
+            homogeneousModel.setParameters(homogeneousFitness);
+        } else for (int i = 0; i < runs; i++) {
             // Set the initial values for the fitness parameters (see method for details)
             homogeneousFitness.set(getInitialFitnessParameters(aminoAcidsAtSite, observedResidueCount, i));
 
@@ -134,23 +178,6 @@ public class SiteAnalyser {
             // TODO: Remove this (or make it an option)
             // homogeneousModel.applyErrorMatrix(globals.getErrorMatrix());
 
-            // Single residue observed at this site
-            if (aminoAcidsAtSite.size() == 1) {
-                System.out.printf("Site %s - Site is conserved.\n", site);
-                homogeneousLikelihood = homogeneousModel.function(new double[]{});
-
-                if (options.heteroClades != null && options.heteroClades.length() > 0) {
-                    heterogeneousLikelihood = homogeneousLikelihood;
-                }
-
-                System.out.printf("Site %s - Homogeneous model lnL: %s\n", site, homogeneousLikelihood);
-                System.out.printf("Site %s - Fitness: { %s }\n", site, Doubles.join(", ", getOrderedFitness(aminoAcidsAtSite, homogeneousFitness.get())));
-                System.out.printf("Site %s - Pi: { %s }\n", site, Doubles.join(", ", tcm1.getAminoAcidFrequencies()));
-                fitnessOptima = Arrays.copyOf(homogeneousFitness.get(), homogeneousFitness.get().length);
-                //TODO: we exit out of method here...what about the rest of the output (e.g. heterogeneous model)?
-                return;
-            }
-
             RealPointValuePair r = optimise(homogeneousModel);
 
             // Store the log-likelihood, to 3 decimal places, and point for this run
@@ -189,13 +216,21 @@ public class SiteAnalyser {
         System.out.printf("Site %s - Pi: { %s }\n", site, Doubles.join(", ", tcm1.getAminoAcidFrequencies()));
         homogeneousLikelihood = r.getValue();
 
+        // Results to pass to the sink once the site is finished
+        List<SiteResult> results = Lists.newArrayList();
+        double[] homogeneousPi = tcm1.getAminoAcidFrequencies();
+
         if (options.heteroClades == null) {
-            System.out.printf("Site %s - Time: %s ms\n", site, System.currentTimeMillis() - startTime);
+            long time = System.currentTimeMillis() - startTime;
+            System.out.printf("Site %s - Time: %s ms\n", site, time);
+            results.add(new SiteResult(site, SiteResult.HOMOGENEOUS_MODEL, homogeneousLikelihood,
+                    getOrderedFitness(aminoAcidsAtSite, homogeneousFitness.get()), homogeneousPi, time));
+            writeResults(results);
             return;
         }
 
         // ********************* HETEROGENEOUS MODEL *************************
-        LikelihoodCalculator heterogeneousModel = new LikelihoodCalculator(tree, sitePattern, options.prior);
+        LikelihoodCalculator heterogeneousModel = new LikelihoodCalculator(tree, tipStates, options.prior);
 
         List<String> clades = Lists.newArrayList(options.heteroClades.split(","));
         double[] orderedFitnessHomogeneousMLE = getOrderedFitness(aminoAcidsAtSite, homogeneousFitness.get());
@@ -206,9 +241,10 @@ public class SiteAnalyser {
         for (int i = 0; i < clades.size(); i++) {
             // Get amino acids observed for this clade (i) get the codons
             Collection<Integer> codonsForClade = Lists.newArrayList();
-            for (Map.Entry<String, Integer> e: sitePattern.entrySet())
-                if (e.getKey().startsWith(clades.get(i)))
-                    codonsForClade.add(e.getValue());
+            List<String> tipNames = PhyloUtils.getTipNames(tree);
+            for (int j = 0; j < tipNames.size(); j++)
+                if (tipNames.get(j).startsWith(clades.get(i)))
+                    codonsForClade.add(tipStates[j]);
 
             // (ii) get distinct amino acids
             List<Integer> observedAminoAcidsForClade = PhyloUtils.getDistinctAminoAcids(codonsForClade);
@@ -237,7 +273,7 @@ public class SiteAnalyser {
 
         heterogeneousModel.setParameters(fitnesses.toArray(new Parameter[fitnesses.size()]));
 
-        RealPointValuePair r2 = optimise(heterogeneousModel);
+        RealPointValuePair r2 = options.byClade ? optimiseByClade(heterogeneousModel, fitnesses) : optimise(heterogeneousModel);
         heterogeneousModel.function(r2.getPoint());
 
         System.out.printf("Site %s - Non-homogeneous model lnL: %s\n", site, r2.getValue());
@@ -247,10 +283,111 @@ public class SiteAnalyser {
         }
         heterogeneousLikelihood = r2.getValue();
 
-        System.out.printf("Site %s - Time: %s ms\n", site, System.currentTimeMillis() - startTime);
+        long time = System.currentTimeMillis() - startTime;
+        System.out.printf("Site %s - Time: %s ms\n", site, time);
+
+        results.add(new SiteResult(site, SiteResult.HOMOGENEOUS_MODEL, homogeneousLikelihood, orderedFitnessHomogeneousMLE, homogeneousPi, time));
+        for (int i = 0; i < clades.size(); i++) {
+            results.add(new SiteResult(site, clades.get(i), heterogeneousLikelihood,
+                    getOrderedFitness(aminoAcidsForClade.get(clades.get(i)), fitnesses.get(i).get()),
+                    tdgModels.get(i).getAminoAcidFrequencies(), time));
+        }
+        writeResults(results);
+    }
+
+    /**
+     * A conserved site has no fitness parameters, so its lnL comes straight from the model of its amino acid, which is
+     * shared by every conserved site with that amino acid.
+     */
+    private void runConserved(long startTime) {
+        System.out.printf("Site %s - Site is conserved.\n", site);
+
+        int aminoAcid = aminoAcidsAtSite.get(0);
+        ConservedSiteLikelihood conserved = ConservedSiteLikelihood.getInstance(tree, globals);
+        double[] fitness = new double[]{Constants.FITNESS_FIXED_FOR_RELATIVE};
+
+        homogeneousLikelihood = conserved.function(tipStates, aminoAcid);
+        if (options.prior != null) homogeneousLikelihood += options.prior.calculate(new double[]{});
+
+        if (options.heteroClades != null && options.heteroClades.length() > 0) {
+            heterogeneousLikelihood = homogeneousLikelihood;
+        }
+
+        System.out.printf("Site %s - Homogeneous model lnL: %s\n", site, homogeneousLikelihood);
+        System.out.printf("Site %s - Fitness: { %s }\n", site, Doubles.join(", ", getOrderedFitness(aminoAcidsAtSite, fitness)));
+        System.out.printf("Site %s - Pi: { %s }\n", site, Doubles.join(", ", conserved.getAminoAcidFrequencies(aminoAcid)));
+        fitnessOptima = fitness;
+        writeResults(Lists.newArrayList(new SiteResult(site, SiteResult.HOMOGENEOUS_MODEL, homogeneousLikelihood,
+                getOrderedFitness(aminoAcidsAtSite, fitness), conserved.getAminoAcidFrequencies(aminoAcid),
+                System.currentTimeMillis() - startTime)));
+    }
+
+    /**
+     * Sends the results of this site to the result sink, if there is one.
+     */
+    private void writeResults(List<SiteResult> results) {
+        if (resultSink == null) return;
+
+        try {
+            resultSink.write(results);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param resultSink where to send the results of this site when run() finishes
+     */
+    public void setResultSink(SiteResultSink resultSink) {
+        this.resultSink = resultSink;
+    }
+
+    /**
+     * Runs the homogeneous model optimisation from each set of initial fitness parameters concurrently. Every run has
+     * its own LikelihoodCalculator and TDGCodonModel. The runs are forked into the current fork-join pool if we're
+     * already in one (e.g. sites are being analysed in one), otherwise into a pool shared by all sites.
+     *
+     * @return the optimum found by each run, in run order
+     */
+    private List<RealPointValuePair> optimiseInParallel(int runs) {
+        List<ForkJoinTask<RealPointValuePair>> tasks = Lists.newArrayListWithCapacity(runs);
+
+        for (int i = 0; i < runs; i++) {
+            // Initial parameters are drawn here, in order, because randomData isn't thread-safe
+            final double[] initialFitness = getInitialFitnessParameters(aminoAcidsAtSite, observedResidueCount, i);
+
+            tasks.add(new RecursiveTask<RealPointValuePair>() {
+                @Override
+                protected RealPointValuePair compute() {
+                    LikelihoodCalculator model = new LikelihoodCalculator(tree, tipStates, options.prior);
+                    Fitness fitness = new Fitness(initialFitness, true);
+                    model.addCladeModel("ALL", new TDGCodonModel(globals, fitness, aminoAcidsAtSite));
+                    model.setParameters(fitness);
+                    return optimise(model);
+                }
+            });
+        }
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            ForkJoinPool pool = getOptimisationPool(options.threads);
+            for (ForkJoinTask<RealPointValuePair> task : tasks) pool.execute(task);
+        }
+
+        List<RealPointValuePair> optima = Lists.newArrayListWithCapacity(runs);
+        for (ForkJoinTask<RealPointValuePair> task : tasks) optima.add(task.join());
+        return optima;
+    }
+
+    private static synchronized ForkJoinPool getOptimisationPool(int threads) {
+        if (optimisationPool == null) optimisationPool = new ForkJoinPool(threads);
+        return optimisationPool;
     }
 
     private RealPointValuePair optimise(LikelihoodCalculator model) {
+        if (options.lbfgs) return optimiseWithGradient(model);
+
         MinimisationParameters mp = model.getMinimisationParameters();
         DirectSearchOptimizer dso = new NelderMead();
         dso.setMaxEvaluations(Constants.MAX_EVALUATIONS); // Constants.MAX_EVALUATIONS
@@ -291,6 +428,129 @@ public class SiteAnalyser {
         return pair;
     }
 
+    /**
+     * Optimises the fitness of one clade at a time, with the fitness of every other clade fixed, in turn until a round
+     * over all the clades no longer improves the lnL. Each clade is optimised as optimise() would (Nelder-Mead or
+     * L-BFGS-B), but with only its own parameters. LikelihoodCalculator only recalculates the subtree of the clade
+     * being optimised (and the path to the root), and with L-BFGS-B only that clade's gradient is calculated, so each
+     * evaluation is cheaper. It usually takes more evaluations than optimising every clade together.
+     *
+     * @param fitnesses the fitness of each clade, in the order of the model's parameters
+     */
+    private RealPointValuePair optimiseByClade(final LikelihoodCalculator model, List<Fitness> fitnesses) {
+        final double[] initial = model.getMinimisationParameters().getParameters();
+        final double[] point = initial.clone();
+        double lnL = model.function(point);
+        int evaluations = 1;
+        int rounds = 0;
+
+        while (evaluations < Constants.MAX_EVALUATIONS) {
+            double previous = lnL;
+            rounds++;
+
+            int offset = 0;
+            for (Fitness fitness : fitnesses) {
+                final int from = offset;
+                final int length = fitness.get().length - 1; // the first fitness is fixed
+                offset += length;
+                if (length == 0) continue;
+
+                final double[] start = Arrays.copyOfRange(point, from, from + length);
+                RealPointValuePair pair;
+                if (options.lbfgs) {
+                    BoundedLBFGS lbfgs = new BoundedLBFGS(Constants.LBFGS_MEMORY, Constants.CONVERGENCE_TOL, Constants.GRADIENT_TOL);
+                    lbfgs.setMaxEvaluations(Constants.MAX_EVALUATIONS - evaluations);
+                    final double[] gradient = new double[point.length];
+
+                    pair = lbfgs.maximise(new DifferentiableFunction() {
+                        @Override
+                        public double value(double[] cladePoint, double[] cladeGradient) {
+                            System.arraycopy(cladePoint, 0, point, from, length);
+                            double l = model.function(point, gradient, fitness);
+                            System.arraycopy(gradient, from, cladeGradient, 0, length);
+                            return l;
+                        }
+                    }, start, -LikelihoodFunctionWrapper.CONSTRAINT, LikelihoodFunctionWrapper.CONSTRAINT);
+                    evaluations += lbfgs.getEvaluations();
+                } else {
+                    DirectSearchOptimizer dso = new NelderMead();
+                    dso.setMaxEvaluations(Constants.MAX_EVALUATIONS - evaluations);
+                    dso.setConvergenceChecker(new SimpleScalarValueChecker(-1, Constants.CONVERGENCE_TOL));
+
+                    final LikelihoodFunctionWrapper wrapper = new LikelihoodFunctionWrapper();
+                    wrapper.setLc(model);
+
+                    try {
+                        pair = dso.optimize(new MultivariateRealFunction() {
+                            @Override
+                            public double value(double[] cladePoint) throws FunctionEvaluationException {
+                                System.arraycopy(cladePoint, 0, point, from, length);
+                                return wrapper.value(point);
+                            }
+                        }, GoalType.MAXIMIZE, start);
+                    } catch (FunctionEvaluationException me) {
+                        System.out.printf("Site %s - Reached maximum number of evaluations. Using last evaluation.\n", site);
+                        System.arraycopy(me.getArgument(), 0, point, from, length);
+                        pair = new RealPointValuePair(me.getArgument(), model.function(point));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    evaluations += dso.getEvaluations();
+                }
+
+                // The optimiser's last evaluation isn't necessarily its optimum, and may not improve on where it started
+                if (pair.getValue() >= lnL) {
+                    System.arraycopy(pair.getPoint(), 0, point, from, length);
+                    lnL = pair.getValue();
+                } else {
+                    System.arraycopy(start, 0, point, from, length);
+                }
+            }
+
+            if (lnL - previous < Constants.CONVERGENCE_TOL) break;
+        }
+
+        System.out.printf("Site %s - Optimisation by clade (%s rounds, %s evaluations). lnL = %s, params = { %s -> %s }\n",
+                site,
+                rounds,
+                evaluations,
+                lnL,
+                Doubles.join(", ", initial),
+                Doubles.join(", ", point));
+
+        return new RealPointValuePair(point, lnL);
+    }
+
+    /**
+     * Optimises with L-BFGS-B, using the gradient of the likelihood. The fitness parameters are bounded to the same
+     * region that LikelihoodFunctionWrapper allows Nelder-Mead.
+     */
+    private RealPointValuePair optimiseWithGradient(final LikelihoodCalculator model) {
+        MinimisationParameters mp = model.getMinimisationParameters();
+        BoundedLBFGS lbfgs = new BoundedLBFGS(Constants.LBFGS_MEMORY, Constants.CONVERGENCE_TOL, Constants.GRADIENT_TOL);
+        lbfgs.setMaxEvaluations(Constants.MAX_EVALUATIONS);
+
+        RealPointValuePair pair = lbfgs.maximise(new DifferentiableFunction() {
+            @Override
+            public double value(double[] point, double[] gradient) {
+                return model.function(point, gradient);
+            }
+        }, mp.getParameters(), -LikelihoodFunctionWrapper.CONSTRAINT, LikelihoodFunctionWrapper.CONSTRAINT);
+
+        if (lbfgs.hasReachedMaxEvaluations()) {
+            System.out.printf("Site %s - Reached maximum number of evaluations. Using best evaluation.\n", site);
+        }
+
+        System.out.printf("Site %s - Optimisation run (%s evaluations). lnL = %s, params = { %s -> %s }\n",
+                site,
+                lbfgs.getEvaluations(),
+                pair.getValue(),
+                Doubles.join(", ", mp.getParameters()), // initial parameters
+                Doubles.join(", ", pair.getPoint()));
+
+        return pair;
+    }
+
     private double[] getOrderedFitness(List<Integer> aminoAcidsAtSite, double[] unorderedFitnesses) {
         double[] orderedFitness = new double[GeneticCode.AMINO_ACID_STATES];
         Arrays.fill(orderedFitness, Double.NEGATIVE_INFINITY);
@@ -14,7 +14,7 @@ public class AnalyseOptions {
     @Parameter(names = "-t", description = "Tree file in Newick format", required = true)
     public String treeFile;
 
-    @Parameter(names = "-s", description = "Codon alignment file in Phylip sequential format.", required = true)
+    @Parameter(names = "-s", description = "Codon alignment file in Phylip sequential format, or a binary codon alignment (see tdg.utils.CodonAlignmentConverter).", required = true)
     public String alignmentFile;
 
     @Parameter(names = "-site", description = "Site (e.g. 101) or range of sites (e.g. 101-202) to analyse.", required = false, converter = SiteRangeConverter.class)
@@ -26,9 +26,27 @@ public class AnalyseOptions {
     @Parameter(names = "-optimruns", description = "The number of times to run the optimisation, with random initial parameters.", hidden = true)
     public int optimRuns = 1;
 
+    @Parameter(names = "-parallelruns", description = "Run the optimisation runs (see -optimruns) for a site in parallel.", hidden = true)
+    public boolean parallelRuns = false;
+
+    @Parameter(names = "-lbfgs", description = "Optimise the fitness parameters with L-BFGS-B, using analytic gradients, rather than Nelder-Mead.", required = false)
+    public boolean lbfgs = false;
+
+    @Parameter(names = "-byclade", description = "With -heteroclades, optimise the fitness of one clade at a time, with the other clades fixed, until the lnL stops improving. Takes more (but cheaper) evaluations than optimising all clades together.", required = false)
+    public boolean byClade = false;
+
     @Parameter(names = "-threads", description = "The number of threads to use.", required = false)
     public int threads = 1;
 
+    @Parameter(names = "-results", description = "Also write the estimates for each site to this binary results file, as each site finishes.", required = false)
+    public String resultsFile;
+
+    @Parameter(names = "-checkpoint", description = "Record each completed site in this file, so the run can be resumed with -resume.", required = false)
+    public String checkpointFile;
+
+    @Parameter(names = "-resume", description = "Skip the sites already completed in the -checkpoint file.", required = false)
+    public boolean resume = false;
+
     @ParametersDelegate
     public GlobalsOptions globals = new GlobalsOptions();
 
@@ -0,0 +1,181 @@
+package tdg.distributed;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection from the Master to one Slave's FrameServer. Requests are written as soon as they're made, without
+ * waiting for earlier replies; a reader thread matches each reply to its request by request ID. If the connection
+ * fails, every request waiting for a reply (and every later request) fails with an IOException.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see FrameProtocol
+ */
+class FrameClient {
+    private final String server;
+    private final SocketChannel channel;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, SettableFuture<FrameProtocol.Frame>> waiting = Maps.newConcurrentMap();
+    private volatile IOException failure;
+
+    /**
+     * @param server the address of the slave, e.g. 192.168.52.25:8000
+     */
+    FrameClient(String server) throws IOException {
+        this.server = server;
+        String[] hostPort = server.split(":");
+        channel = SocketChannel.open(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+        channel.socket().setTcpNoDelay(true);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, "FrameClient " + server);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    Future<double[]> evaluate(List<Integer> sites) {
+        return new ResultFuture(send(FrameProtocol.EVALUATE, FrameProtocol.sitesPayload(sites)));
+    }
+
+    /**
+     * @param globals tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma
+     */
+    Future<double[]> updateGlobalsAndEvaluate(double[] globals, boolean refresh, List<Integer> sites) {
+        return new ResultFuture(send(FrameProtocol.UPDATE_GLOBALS_AND_EVALUATE, FrameProtocol.globalsPayload(globals, refresh, sites)));
+    }
+
+    /**
+     * @param globalSets each of tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma
+     * @return the lnL of each site with each set of globals, the sets of a site together
+     */
+    Future<double[]> evaluate(List<Integer> sites, List<double[]> globalSets) {
+        return new ResultFuture(send(FrameProtocol.EVALUATE_GLOBALS, FrameProtocol.globalSetsPayload(globalSets, sites)));
+    }
+
+    /**
+     * @return future completed with the reply (which may be ERROR)
+     */
+    Future<FrameProtocol.Frame> send(byte type, ByteBuffer payload) {
+        int requestId = nextRequestId.incrementAndGet();
+        SettableFuture<FrameProtocol.Frame> reply = SettableFuture.create();
+        waiting.put(requestId, reply);
+
+        try {
+            if (failure != null) throw failure;
+            ByteBuffer frame = FrameProtocol.encode(requestId, type, payload);
+            synchronized (channel) {
+                while (frame.hasRemaining()) channel.write(frame);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+
+        return reply;
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+    private void readReplies() {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                length.clear();
+                readFully(length);
+                int n = length.getInt(0);
+                if (n < FrameProtocol.HEADER_LENGTH || n > FrameProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("bad frame length " + n);
+                }
+
+                ByteBuffer frame = ByteBuffer.allocate(n);
+                readFully(frame);
+                frame.flip();
+
+                FrameProtocol.Frame reply = FrameProtocol.decode(frame);
+                SettableFuture<FrameProtocol.Frame> f = waiting.remove(reply.requestId);
+                if (f != null) f.set(reply);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) throw new IOException("connection to " + server + " closed");
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) failure = e;
+        for (Integer requestId : waiting.keySet()) {
+            SettableFuture<FrameProtocol.Frame> f = waiting.remove(requestId);
+            if (f != null) f.setException(failure);
+        }
+    }
+
+    /**
+     * The lnLs of a RESULT reply
+     */
+    private static class ResultFuture implements Future<double[]> {
+        private final Future<FrameProtocol.Frame> reply;
+
+        ResultFuture(Future<FrameProtocol.Frame> reply) {
+            this.reply = reply;
+        }
+
+        @Override
+        public double[] get() throws InterruptedException, ExecutionException {
+            return getResult(reply.get());
+        }
+
+        @Override
+        public double[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return getResult(reply.get(timeout, unit));
+        }
+
+        private static double[] getResult(FrameProtocol.Frame frame) throws ExecutionException {
+            try {
+                return FrameProtocol.getResult(frame);
+            } catch (IOException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return reply.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return reply.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return reply.isDone();
+        }
+    }
+}
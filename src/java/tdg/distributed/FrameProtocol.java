@@ -0,0 +1,179 @@
+package tdg.distributed;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The binary protocol between Master and Slave used with -frames, as an alternative to HTTP. Each message is a frame:
+ * <p/>
+ * int length (of the rest of the frame), int request ID, byte type, payload
+ * <p/>
+ * all big-endian. A Slave replies to every request with a frame with the same request ID. Requests on a connection are
+ * handled in the order they're sent, so a client can send several without waiting for replies (e.g. new globals then
+ * a batch of sites).
+ * <p/>
+ * Requests and their payloads:
+ * <ul>
+ * <li>UPDATE_GLOBALS: globals, refresh. Reply OK.</li>
+ * <li>EVALUATE: sites. Reply RESULT.</li>
+ * <li>UPDATE_GLOBALS_AND_EVALUATE: globals, refresh, sites. Reply RESULT.</li>
+ * <li>EVALUATE_GLOBALS: int count, then that many globals, sites. Each site is evaluated with each set of globals,
+ * without changing the Slave's globals or fits. Reply RESULT, with the lnLs of each site together.</li>
+ * </ul>
+ * where globals are 8 doubles (tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma), refresh is a byte (1 to refit every
+ * site), sites are an int count then each site. RESULT is an int count then the lnL (double) of each site, in request
+ * order. Any request can instead get ERROR, with a UTF message.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see FrameServer
+ * @see FrameClient
+ */
+final class FrameProtocol {
+    static final byte OK = 0;
+    static final byte RESULT = 1;
+    static final byte ERROR = 2;
+    static final byte UPDATE_GLOBALS = 10;
+    static final byte EVALUATE = 11;
+    static final byte UPDATE_GLOBALS_AND_EVALUATE = 12;
+    static final byte EVALUATE_GLOBALS = 13;
+
+    static final int GLOBALS_COUNT = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Request ID and type
+    static final int HEADER_LENGTH = 5;
+    // Anything longer isn't one of our frames
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private FrameProtocol() {}
+
+    static final class Frame {
+        final int requestId;
+        final byte type;
+        final ByteBuffer payload;
+
+        Frame(int requestId, byte type, ByteBuffer payload) {
+            this.requestId = requestId;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @return the whole frame, ready to write
+     */
+    static ByteBuffer encode(int requestId, byte type, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_LENGTH + payload.remaining());
+        frame.putInt(HEADER_LENGTH + payload.remaining());
+        frame.putInt(requestId);
+        frame.put(type);
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param frame the rest of a frame, after the length
+     */
+    static Frame decode(ByteBuffer frame) {
+        int requestId = frame.getInt();
+        byte type = frame.get();
+        return new Frame(requestId, type, frame.slice());
+    }
+
+    static ByteBuffer globalsPayload(double[] globals, boolean refresh, List<Integer> sites) {
+        ByteBuffer payload = ByteBuffer.allocate(GLOBALS_COUNT * 8 + 1 + (sites == null ? 0 : 4 + sites.size() * 4));
+        for (int i = 0; i < GLOBALS_COUNT; i++) payload.putDouble(globals[i]);
+        payload.put((byte) (refresh ? 1 : 0));
+        if (sites != null) putSites(payload, sites);
+        payload.flip();
+        return payload;
+    }
+
+    static ByteBuffer globalSetsPayload(List<double[]> globalSets, List<Integer> sites) {
+        ByteBuffer payload = ByteBuffer.allocate(4 + globalSets.size() * GLOBALS_COUNT * 8 + 4 + sites.size() * 4);
+        payload.putInt(globalSets.size());
+        for (double[] globals : globalSets) {
+            for (int i = 0; i < GLOBALS_COUNT; i++) payload.putDouble(globals[i]);
+        }
+        putSites(payload, sites);
+        payload.flip();
+        return payload;
+    }
+
+    static ByteBuffer sitesPayload(List<Integer> sites) {
+        ByteBuffer payload = ByteBuffer.allocate(4 + sites.size() * 4);
+        putSites(payload, sites);
+        payload.flip();
+        return payload;
+    }
+
+    static ByteBuffer resultPayload(double[] lnls) {
+        ByteBuffer payload = ByteBuffer.allocate(4 + lnls.length * 8);
+        payload.putInt(lnls.length);
+        for (double lnl : lnls) payload.putDouble(lnl);
+        payload.flip();
+        return payload;
+    }
+
+    static ByteBuffer errorPayload(String message) {
+        byte[] bytes = (message == null ? "" : message).getBytes(UTF8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(bytes.length, 65535));
+        payload.putShort((short) Math.min(bytes.length, 65535));
+        payload.put(bytes, 0, Math.min(bytes.length, 65535));
+        payload.flip();
+        return payload;
+    }
+
+    static double[] getGlobals(ByteBuffer payload) {
+        double[] globals = new double[GLOBALS_COUNT];
+        for (int i = 0; i < GLOBALS_COUNT; i++) globals[i] = payload.getDouble();
+        return globals;
+    }
+
+    static List<double[]> getGlobalSets(ByteBuffer payload) {
+        int count = payload.getInt();
+        List<double[]> globalSets = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) globalSets.add(getGlobals(payload));
+        return globalSets;
+    }
+
+    static boolean getRefresh(ByteBuffer payload) {
+        return payload.get() == 1;
+    }
+
+    static int[] getSites(ByteBuffer payload) {
+        int[] sites = new int[payload.getInt()];
+        for (int i = 0; i < sites.length; i++) sites[i] = payload.getInt();
+        return sites;
+    }
+
+    /**
+     * @return the lnLs of a RESULT reply
+     * @throws IOException if the reply is an ERROR
+     */
+    static double[] getResult(Frame reply) throws IOException {
+        checkNotError(reply);
+        double[] lnls = new double[reply.payload.getInt()];
+        for (int i = 0; i < lnls.length; i++) lnls[i] = reply.payload.getDouble();
+        return lnls;
+    }
+
+    static void checkNotError(Frame reply) throws IOException {
+        if (reply.type == ERROR) {
+            byte[] bytes = new byte[reply.payload.getShort() & 0xFFFF];
+            reply.payload.get(bytes);
+            throw new IOException("Slave error: " + new String(bytes, UTF8));
+        }
+    }
+
+    private static void putSites(ByteBuffer payload, List<Integer> sites) {
+        payload.putInt(sites.size());
+        for (int site : sites) payload.putInt(site);
+    }
+}
@@ -0,0 +1,199 @@
+package tdg.distributed;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves FrameProtocol requests on a port with non-blocking IO. A single thread reads and writes every connection;
+ * requests are handled by a worker thread for each connection, one after the other in the order they arrived, so a
+ * client can pipeline requests that depend on earlier ones (e.g. new globals, then sites to evaluate with them).
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see FrameProtocol
+ */
+class FrameServer implements Runnable {
+    interface Handler {
+        /**
+         * @return the reply; its request ID is ignored
+         */
+        FrameProtocol.Frame handle(FrameProtocol.Frame request) throws Exception;
+    }
+
+    private final Handler handler;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    // Connections with replies waiting, set by the workers for the selector thread
+    private final Queue<FrameConnection> writable = new ConcurrentLinkedQueue<FrameConnection>();
+
+    FrameServer(int port, Handler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts serving on its own thread
+     */
+    void start() {
+        Thread t = new Thread(this, "FrameServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+
+                FrameConnection c;
+                while ((c = writable.poll()) != null) {
+                    if (c.key.isValid()) c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        // e.g. out of file descriptors: keep serving the connections already open
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            System.err.printf("ERROR: could not accept frame connection (%s).\n", e.getMessage());
+                        }
+                        continue;
+                    }
+
+                    FrameConnection connection = (FrameConnection) key.attachment();
+                    if (connection == null) continue;
+
+                    try {
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        System.err.printf("ERROR: frame connection closed (%s).\n", e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new FrameConnection(channel, key));
+    }
+
+    private class FrameConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ExecutorService worker = Executors.newSingleThreadExecutor();
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+        FrameConnection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) == -1) {
+                close();
+                return;
+            }
+
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < FrameProtocol.HEADER_LENGTH || length > FrameProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) break;
+
+                in.getInt();
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                ByteBuffer source = in.duplicate();
+                source.limit(in.position() + length);
+                frame.put(source);
+                frame.flip();
+                in.position(in.position() + length);
+
+                submit(FrameProtocol.decode(frame));
+            }
+            in.compact();
+
+            // Make room for a large frame
+            if (in.remaining() == 0 || (in.position() >= 4 && in.getInt(0) + 4 > in.capacity())) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(in.capacity() * 2, in.position() >= 4 ? in.getInt(0) + 4 : 0));
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        }
+
+        private void submit(final FrameProtocol.Frame request) {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    FrameProtocol.Frame reply;
+                    try {
+                        reply = handler.handle(request);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        reply = new FrameProtocol.Frame(request.requestId, FrameProtocol.ERROR, FrameProtocol.errorPayload(e.toString()));
+                    }
+
+                    replies.add(FrameProtocol.encode(request.requestId, reply.type, reply.payload));
+                    writable.add(FrameConnection.this);
+                    selector.wakeup();
+                }
+            });
+        }
+
+        void write() throws IOException {
+            ByteBuffer reply;
+            while ((reply = replies.peek()) != null) {
+                channel.write(reply);
+                if (reply.hasRemaining()) return; // the socket is full, wait to be writable again
+                replies.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // A reply may have been added since the queue was found empty
+            if (!replies.isEmpty()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            key.cancel();
+            worker.shutdownNow();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
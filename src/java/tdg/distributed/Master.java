@@ -4,11 +4,12 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.ParametersDelegate;
-import com.google.common.collect.Iterators;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 import com.ning.http.client.AsyncCompletionHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
@@ -21,20 +22,25 @@ import org.apache.commons.math.optimization.RealPointValuePair;
 import org.apache.commons.math.optimization.SimpleScalarValueChecker;
 import org.apache.commons.math.optimization.direct.DirectSearchOptimizer;
 import org.apache.commons.math.optimization.direct.NelderMead;
-import pal.alignment.Alignment;
 import tdg.Constants;
 import tdg.cli.GeneticCodeOption;
 import tdg.cli.GlobalsOptions;
+import tdg.utils.CodonAlignment;
 import tdg.utils.CoreUtils;
 import tdg.utils.PhyloUtils;
 import tdg.utils.ValueComparer;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.FilenameFilter;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
@@ -42,11 +48,22 @@ import java.util.concurrent.Future;
 public class Master {
 
     private Collection<Integer> sites;
+    // Estimated cost of evaluating each site, used to balance the partitions
+    private Map<Integer, Long> siteCosts;
     private List<String> servers;
+    // The sites each working server evaluates, which stay the same for the whole run (unless a server fails), so each
+    // slave keeps its fitted site models
+    private Map<String, List<Integer>> partitions;
+    private Map<String, Long> serverCosts = Maps.newHashMap();
     private boolean refresh = false;
     AsyncHttpClient asyncHttpClient;
+    // With -frames, a connection to each server, and the port of each server's frame protocol
+    private Map<String, FrameClient> frameClients = Maps.newHashMap();
+    private Map<String, Integer> framePorts = Maps.newHashMap();
     private int totalits = 1;
     private List<Result> results = Lists.newArrayList();
+    // The first step of the pattern search, relative to each parameter
+    private static final double INITIAL_STEP = 0.1;
 
     class Result {
         public int iteration;
@@ -77,18 +94,90 @@ public class Master {
             System.out.printf("Evaluation %s / %s\n", evals++, totalits++);
 
             // use very bad log-likelihood to exit quickly if we're near constraint
-            if (point[0] <= 0) // tau
+            double[] globals = toGlobals(point);
+            if (globals == null)
                 return Constants.VERY_BAD_LIKELIHOOD;
 
-            if (point[1] <= 0) // kappa
-                return Constants.VERY_BAD_LIKELIHOOD;
+            return evaluate(globals);
+        }
+    }
 
-            if (point[5] <= 0) // mu
-                return Constants.VERY_BAD_LIKELIHOOD;
+    /**
+     * @param point tau, kappa, additive log-ratio of pi (3) and mu, as optimised
+     * @return tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma as sent to the slaves, or null if the point is outside the
+     * constraints
+     */
+    private static double[] toGlobals(double[] point) {
+        if (point[0] <= 0) // tau
+            return null;
+
+        if (point[1] <= 0) // kappa
+            return null;
+
+        if (point[5] <= 0) // mu
+            return null;
+
+        double[] pi = CoreUtils.alr_inv(new double[]{point[2], point[3], point[4]});
+        return new double[]{
+                point[0], // tau
+                point[1], // kappa
+                pi[0], pi[1], pi[2], 1 - pi[0] - pi[1] - pi[2], // pi_T, pi_C, pi_A, pi_G (= 1 - pi_T - pi_C - pi_A)
+                point[5], // mu
+                0.0}; // gamma
+    }
+
+    /**
+     * Maximises the log-likelihood by a compass search: each round evaluates the 2 points either side of the current
+     * point along each parameter, all at once in one request to each slave. The current point moves to the best of
+     * these if it's better; otherwise every step is halved. Stops when every step is below the convergence tolerance
+     * (relative to the starting value of the parameter).
+     *
+     * @param start tau, kappa, additive log-ratio of pi (3) and mu
+     */
+    private RealPointValuePair optimiseByPatternSearch(double[] start) {
+        double[] x = start.clone();
+        // Steps are relative to the size of each parameter at the start
+        double[] scale = new double[x.length];
+        double[] step = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            scale[i] = x[i] == 0 ? 1 : Math.abs(x[i]);
+            step[i] = scale[i] * INITIAL_STEP;
+        }
+
+        // Sends the centre to the slaves, so their sites are fitted (or refreshed) with it
+        double fx = toGlobals(x) == null ? Constants.VERY_BAD_LIKELIHOOD : evaluate(toGlobals(x));
+        totalits++;
+
+        int evals = 1;
+        while (evals < Constants.MAX_EVALUATIONS) {
+            boolean converged = true;
+            for (int i = 0; i < x.length; i++) if (step[i] > convergence * scale[i]) converged = false;
+            if (converged) break;
+
+            List<double[]> points = Lists.newArrayList();
+            for (int i = 0; i < x.length; i++) {
+                for (int sign = 1; sign >= -1; sign -= 2) {
+                    double[] p = x.clone();
+                    p[i] += sign * step[i];
+                    points.add(p);
+                }
+            }
+
+            double[] values = evaluate(points);
+            evals += points.size();
 
-            double[] pi = CoreUtils.alr_inv(new double[]{point[2], point[3], point[4]});
-            return evaluate(point[0], point[1], pi[0], pi[1], pi[2], point[5]);
+            int best = 0;
+            for (int i = 1; i < values.length; i++) if (values[i] > values[best]) best = i;
+
+            if (values[best] > fx) {
+                x = points.get(best);
+                fx = values[best];
+            } else {
+                for (int i = 0; i < step.length; i++) step[i] /= 2;
+            }
         }
+
+        return new RealPointValuePair(x, fx);
     }
 
     private void optimiseBranchLengths() {
@@ -114,95 +203,331 @@ public class Master {
 
     }
 
-    private double evaluate(double... point) {
+    /**
+     * @param globals tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma
+     * @return the total log-likelihood of all sites, with the globals now set on each server
+     */
+    private double evaluate(double[] globals) {
         long startTime = System.currentTimeMillis();
-        System.out.printf("Evaluate for: %s\n", Doubles.join(", ", point));
+        System.out.printf("Evaluate for: %s\n", Doubles.join(", ", globals));
 
-        Set<Future<Response>> results = Sets.newHashSet();
         double sumlnL = 0.0;
 
-
         try {
-            // Update TdG globals on each server
-            updateGlobalsOnServers(servers, asyncHttpClient,
-                    point[0], // tau
-                    point[1], // kappa
-                    point[2], point[3], point[4], 1 - point[2] - point[3] - point[4], // pi_T, pi_C, pi_A, pi_G (= 1 - pi_T - pi_C - pi_A)
-                    point[5], // mu
-                    0.0); // gamma
-
-            sendRequestToServers(sites.iterator(), servers, asyncHttpClient, results);
-
-            for (Future<Response> r : results) {
-                String response = null;
-                try {
-                    response = r.get().getResponseBody();
-                    // System.out.printf("response: %s\n\n", response);
-                } catch (Exception e) {
-                    System.err.println("ERROR: couldn't read response.");
-                    e.printStackTrace();
-                }
-
-                sumlnL += Double.parseDouble(response);
-                // System.out.printf("%s\n", response);
+            Map<String, List<Integer>> pending;
+            Map<String, Future<double[]>> results;
+
+            if (useFrames) {
+                // The new globals and the sites go in one message to each server
+                pending = Maps.newLinkedHashMap(partitions);
+                results = sendFramesToServers(pending, globals, null);
+            } else {
+                // Update TdG globals on each server
+                updateGlobalsOnServers(asyncHttpClient, globals[0], globals[1], globals[2], globals[3], globals[4], globals[5], globals[6], globals[7]);
+                pending = Maps.newLinkedHashMap(partitions);
+                results = sendRequestToServers(pending, asyncHttpClient, null);
             }
 
+            sumlnL = collectResults(pending, results, null)[0];
         } catch (Exception e) {
-            e.printStackTrace();
+            // Without every site's lnL there's no total to give the optimiser, so stop the run
+            throw new RuntimeException("Couldn't evaluate the sites on the slave servers.", e);
         }
 
-
         System.out.printf("Log-likelihood = %s\n", sumlnL);
         System.out.printf("Time: %s ms\n\n", System.currentTimeMillis() - startTime);
 
         return sumlnL;
     }
 
-    private void updateGlobalsOnServers(List<String> servers, AsyncHttpClient asyncHttpClient, double tau, double kappa, double t, double c, double a, double g, double mu, double gamma) throws Exception {
-        Set<Future<Response>> results = Sets.newHashSet();
+    /**
+     * Evaluates several points at once: each server evaluates each of its sites for all the points in one request,
+     * keeping the globals (and so site fits) it has
+     *
+     * @param points each of tau, kappa, additive log-ratio of pi (3) and mu
+     * @return the total log-likelihood of all sites for each point
+     */
+    private double[] evaluate(List<double[]> points) {
+        long startTime = System.currentTimeMillis();
+        System.out.printf("Evaluations %s-%s: %s points\n", totalits, totalits + points.size() - 1, points.size());
+        totalits += points.size();
+
+        // Points outside the constraints aren't sent
+        double[] sumlnL = new double[points.size()];
+        List<double[]> globalSets = Lists.newArrayList();
+        List<Integer> sent = Lists.newArrayList();
+        for (int i = 0; i < points.size(); i++) {
+            double[] globals = toGlobals(points.get(i));
+            if (globals == null) {
+                sumlnL[i] = Constants.VERY_BAD_LIKELIHOOD;
+            } else {
+                globalSets.add(globals);
+                sent.add(i);
+            }
+        }
+
+        if (!globalSets.isEmpty()) {
+            try {
+                Map<String, List<Integer>> pending = Maps.newLinkedHashMap(partitions);
+                Map<String, Future<double[]>> results = useFrames
+                        ? sendFramesToServers(pending, null, globalSets)
+                        : sendRequestToServers(pending, asyncHttpClient, globalSets);
+
+                double[] lnls = collectResults(pending, results, globalSets);
+                for (int i = 0; i < sent.size(); i++) sumlnL[sent.get(i)] = lnls[i];
+            } catch (Exception e) {
+                throw new RuntimeException("Couldn't evaluate the sites on the slave servers.", e);
+            }
+        }
+
+        for (int i = 0; i < points.size(); i++) {
+            System.out.printf("Evaluate for: %s\nLog-likelihood = %s\n", Doubles.join(", ", points.get(i)), sumlnL[i]);
+        }
+        System.out.printf("Time: %s ms\n\n", System.currentTimeMillis() - startTime);
+
+        return sumlnL;
+    }
+
+    /**
+     * Sums the lnLs from the servers. Each server evaluates its own partition. If a server fails, only its sites are
+     * sent again, to the servers that take them over.
+     *
+     * @param globalSets the sets of globals sent with the requests, or null for the globals set on the servers
+     * @return the total log-likelihood of all sites for each set of globals
+     */
+    private double[] collectResults(Map<String, List<Integer>> pending, Map<String, Future<double[]>> results, List<double[]> globalSets) throws Exception {
+        int sets = globalSets == null ? 1 : globalSets.size();
+        double[] sumlnL = new double[sets];
+
+        while (!pending.isEmpty()) {
+            Map<String, List<Integer>> reassigned = Maps.newLinkedHashMap();
+
+            for (Map.Entry<String, Future<double[]>> r : results.entrySet()) {
+                List<Integer> serverSites = pending.get(r.getKey());
+                try {
+                    // One lnL for each site of the request (for each set of globals), in request order
+                    double[] lnls = useFrames ? r.getValue().get(requestTimeout, TimeUnit.MILLISECONDS) : r.getValue().get();
+                    if (lnls.length != serverSites.size() * sets) throw new IOException("Expected " + serverSites.size() * sets + " lnLs but got " + lnls.length);
+
+                    double[] serverlnL = new double[sets];
+                    for (int i = 0; i < lnls.length; i++) serverlnL[i % sets] += lnls[i];
+                    for (int i = 0; i < sets; i++) sumlnL[i] += serverlnL[i];
+                } catch (Exception e) {
+                    if (e instanceof TimeoutException) {
+                        // The server may still be busy with the sites, so drop its connection and don't use it again
+                        System.err.printf("ERROR: timed out waiting for response from %s.\n", r.getKey());
+                        frameClients.remove(r.getKey()).close();
+                    } else {
+                        System.err.printf("ERROR: couldn't read response from %s.\n", r.getKey());
+                        e.printStackTrace();
+                    }
+                    for (Map.Entry<String, List<Integer>> m : serverFailed(r.getKey(), serverSites).entrySet()) {
+                        if (!reassigned.containsKey(m.getKey())) reassigned.put(m.getKey(), Lists.<Integer>newArrayList());
+                        reassigned.get(m.getKey()).addAll(m.getValue());
+                    }
+                }
+            }
+
+            // A server taking over sites has already been sent the globals
+            pending = reassigned;
+            results = useFrames ? sendFramesToServers(pending, null, globalSets) : sendRequestToServers(pending, asyncHttpClient, globalSets);
+        }
+
+        return sumlnL;
+    }
+
+    private void updateGlobalsOnServers(AsyncHttpClient asyncHttpClient, double tau, double kappa, double t, double c, double a, double g, double mu, double gamma) throws Exception {
+        Map<String, Future<Response>> results = Maps.newHashMap();
 
         if (refresh)
             System.out.println("Refreshing slave cache.");
 
-        for (String server : servers) {
+        for (String server : partitions.keySet()) {
             final String url = "http://" + server + "/?updateglobals=" + Doubles.join(",", tau, kappa, t, c, a, g, mu, gamma) + "&refresh=" + refresh;
             Future<Response> f = asyncHttpClient.prepareGet(url).execute();
-            results.add(f);
+            results.put(server, f);
         }
 
         refresh = false;
 
-        for (Future<Response> r : results) {
-            String response = r.get().getResponseBody();
-            // System.out.printf("%s\n", response);
+        for (Map.Entry<String, Future<Response>> r : results.entrySet()) {
+            try {
+                Response response = r.getValue().get();
+                if (response.getStatusCode() != 200) throw new IOException("HTTP status " + response.getStatusCode());
+            } catch (Exception e) {
+                System.err.printf("ERROR: couldn't update globals on %s.\n", r.getKey());
+                e.printStackTrace();
+                // Every other server has been updated, so they can take over the sites straight away
+                serverFailed(r.getKey(), partitions.get(r.getKey()));
+            }
+        }
+
+    }
+
+    /**
+     * Stops using a server that has failed, and moves its sites to the remaining servers, each to the server with the
+     * least cost so far. The sites stay with their new server for the rest of the run.
+     *
+     * @param sites the sites that the server didn't evaluate
+     * @return the sites given to each server
+     */
+    private Map<String, List<Integer>> serverFailed(String server, List<Integer> sites) {
+        partitions.remove(server);
+        serverCosts.remove(server);
+        System.err.printf("Slave server %s has failed. Moving its %s sites to the other %s server(s).\n", server, sites.size(), partitions.size());
+
+        if (partitions.isEmpty()) {
+            throw new RuntimeException("All slave servers have failed.");
+        }
+
+        // Most expensive sites first
+        List<Integer> orderedSites = Lists.newArrayList(sites);
+        Collections.sort(orderedSites, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return siteCosts.get(b).compareTo(siteCosts.get(a));
+            }
+        });
+
+        Map<String, List<Integer>> reassigned = Maps.newLinkedHashMap();
+        for (int site : orderedSites) {
+            String cheapest = null;
+            for (String s : serverCosts.keySet()) if (cheapest == null || serverCosts.get(s) < serverCosts.get(cheapest)) cheapest = s;
+            serverCosts.put(cheapest, serverCosts.get(cheapest) + siteCosts.get(site));
+            if (!reassigned.containsKey(cheapest)) reassigned.put(cheapest, Lists.<Integer>newArrayList());
+            reassigned.get(cheapest).add(site);
+        }
+
+        for (Map.Entry<String, List<Integer>> r : reassigned.entrySet()) {
+            Collections.sort(r.getValue());
+            List<Integer> partition = Lists.newArrayList(partitions.get(r.getKey()));
+            partition.addAll(r.getValue());
+            Collections.sort(partition);
+            partitions.put(r.getKey(), partition);
+        }
+
+        return reassigned;
+    }
+
+    /**
+     * Sends one batch request to each server for all the sites in its partition
+     *
+     * @param globalSets sets of globals to evaluate each site with, or null for the globals set on the servers
+     * @return the lnLs of each server's sites, in partition order (with the sets of a site together)
+     */
+    private Map<String, Future<double[]>> sendRequestToServers(Map<String, List<Integer>> partitions, AsyncHttpClient asyncHttpClient, List<double[]> globalSets) throws Exception {
+        String globalsParameter = null;
+        if (globalSets != null) {
+            List<String> sets = Lists.newArrayList();
+            for (double[] globals : globalSets) sets.add(Doubles.join(",", globals));
+            globalsParameter = Joiner.on(";").join(sets);
+        }
+
+        Map<String, Future<double[]>> results = Maps.newHashMap();
+
+        for (Map.Entry<String, List<Integer>> partition : partitions.entrySet()) {
+            if (partition.getValue().isEmpty()) continue;
+
+            // Posted as a form rather than in the URL: the slave's HTTP server drops requests whose header is exactly
+            // 2048 bytes, which long lists of sites and globals can be
+            AsyncHttpClient.BoundRequestBuilder request = asyncHttpClient.preparePost("http://" + partition.getKey() + "/")
+                    .addParameter("sites", SiteList.format(partition.getValue()));
+            if (globalsParameter != null) request.addParameter("globals", globalsParameter);
+
+            results.put(partition.getKey(), request.execute(new AsyncCompletionHandler<double[]>() {
+                @Override
+                public double[] onCompleted(Response response) throws Exception {
+                    if (response.getStatusCode() != 200) throw new IOException("HTTP status " + response.getStatusCode());
+
+                    // Big-endian doubles, one for each site
+                    byte[] body = response.getResponseBodyAsBytes();
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+                    double[] lnls = new double[body.length / 8];
+                    for (int i = 0; i < lnls.length; i++) lnls[i] = in.readDouble();
+                    return lnls;
+                }
+            }));
+        }
+
+        return results;
+    }
+
+    /**
+     * Sends one frame to each server for all the sites in its partition, with the new globals if given. Refreshes the
+     * slaves' caches with the globals if a refresh is due.
+     *
+     * @param globals tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma, or null to keep those the servers have
+     * @param globalSets sets of globals to evaluate each site with, without setting them on the servers, or null
+     * @return the lnLs of each server's sites, in partition order (with the sets of a site together)
+     */
+    private Map<String, Future<double[]>> sendFramesToServers(Map<String, List<Integer>> partitions, double[] globals, List<double[]> globalSets) {
+        Map<String, Future<double[]>> results = Maps.newHashMap();
+
+        if (globals != null && refresh)
+            System.out.println("Refreshing slave cache.");
+
+        for (Map.Entry<String, List<Integer>> partition : partitions.entrySet()) {
+            if (partition.getValue().isEmpty()) continue;
+
+            FrameClient client = frameClients.get(partition.getKey());
+            if (globalSets != null) {
+                results.put(partition.getKey(), client.evaluate(partition.getValue(), globalSets));
+            } else if (globals != null) {
+                results.put(partition.getKey(), client.updateGlobalsAndEvaluate(globals, refresh, partition.getValue()));
+            } else {
+                results.put(partition.getKey(), client.evaluate(partition.getValue()));
+            }
         }
 
+        if (globals != null) refresh = false;
+
+        return results;
+    }
+
+    /**
+     * Connects to each server's frame protocol port. A server that can't be reached has failed.
+     */
+    private Map<String, FrameClient> getFrameClients(List<String> servers) {
+        Map<String, FrameClient> clients = Maps.newHashMap();
+        for (String server : servers) {
+            try {
+                if (!framePorts.containsKey(server)) throw new IOException("No frame port in hostname file");
+                String host = server.substring(0, server.lastIndexOf(':'));
+                clients.put(server, new FrameClient(host + ":" + framePorts.get(server)));
+            } catch (IOException e) {
+                System.err.printf("ERROR: couldn't connect to %s (%s).\n", server, e.getMessage());
+                serverFailed(server, partitions.get(server));
+            }
+        }
+        return clients;
     }
 
-    private void sendRequestToServers(Iterator<Integer> siteIterator, List<String> servers, AsyncHttpClient asyncHttpClient, Collection<Future<Response>> results) throws Exception {
-        // Keep cycling over list of servers
-        Iterator<String> cycleServers = Iterators.cycle(servers);
-
-        // Loop over every site, in Q matrix size descending order
-        while (siteIterator.hasNext()) {
-            final int site = siteIterator.next();
-
-            // Pick a server and construct request URL
-            final String url = "http://" + cycleServers.next() + "/?site=" + site;
-
-            // Send a request to the selected server
-            Future<Response> f = asyncHttpClient.prepareGet(url).execute(
-                    new AsyncCompletionHandler<Response>() {
-                        @Override
-                        public Response onCompleted(Response response) throws Exception {
-                            // System.out.printf("Response from %s for site %s. lnL = %s\n", url, site, response.getResponseBody().split(",")[0]);
-                            return response;
-                        }
-                    });
-
-            // Add the Future object to our tdg.results.results collection
-            results.add(f);
+    /**
+     * Splits the sites between the servers so each has about the same total cost: the sites, most expensive first, are
+     * each given to the server with the least cost so far (longest processing time first). The sites of each server
+     * are kept in site order, so the partition has a short SiteList.
+     *
+     * @return the sites for each server
+     */
+    private Map<String, List<Integer>> partitionSites(Collection<Integer> sites, Map<Integer, Long> siteCosts, List<String> servers) {
+        Map<String, List<Integer>> partitions = Maps.newLinkedHashMap();
+        long[] costs = new long[servers.size()];
+        for (String server : servers) partitions.put(server, Lists.<Integer>newArrayList());
+
+        for (int site : sites) { // most expensive first
+            int cheapest = 0;
+            for (int i = 1; i < costs.length; i++) if (costs[i] < costs[cheapest]) cheapest = i;
+            costs[cheapest] += siteCosts.get(site);
+            partitions.get(servers.get(cheapest)).add(site);
+        }
+
+        for (int i = 0; i < servers.size(); i++) {
+            Collections.sort(partitions.get(servers.get(i)));
+            serverCosts.put(servers.get(i), costs[i]);
+            System.out.printf("Slave server %s has %s sites (cost %s).\n", servers.get(i), partitions.get(servers.get(i)).size(), costs[i]);
         }
+
+        return partitions;
     }
 
     /**
@@ -244,9 +569,14 @@ public class Master {
 
         for (File hostFile : allHostFiles) {
             // address written in the form: beo-25/192.168.52.25
-            String address = Files.readFirstLine(hostFile, Charset.forName("US-ASCII")).split("/")[1];
+            List<String> lines = Files.readLines(hostFile, Charset.forName("US-ASCII"));
+            String address = lines.get(0).split("/")[1];
             hostAddresses.add(address);
             System.out.printf("Slave server address: %s\n", address);
+
+            for (String line : lines) {
+                if (line.startsWith(Slave.FRAME_PORT_PREFIX)) framePorts.put(address, Integer.parseInt(line.substring(Slave.FRAME_PORT_PREFIX.length()).trim()));
+            }
         }
 
         return hostAddresses;
@@ -260,17 +590,20 @@ public class Master {
      */
     private Collection<Integer> getSites() {
         // Load the alignment
-        final Alignment alignment = PhyloUtils.readAlignment(alignmentFile);
+        final CodonAlignment alignment = PhyloUtils.readCodonAlignment(alignmentFile);
 
         // Get the Q matrix size (= number of codons) for each site
         Map<Integer, Integer> siteCodonCount = new HashMap<Integer, Integer>();
-        for (int i = 1; i <= (alignment.getSiteCount() / 3); i++) {
-            Map<String, Integer> sitePattern = PhyloUtils.getCodonsAtSite(alignment, i);
-            List<Integer> aminoAcidsAtSite = PhyloUtils.getDistinctAminoAcids(sitePattern.values());
+        siteCosts = new HashMap<Integer, Long>();
+        for (int i = 1; i <= alignment.getSiteCount(); i++) {
+            List<Integer> aminoAcidsAtSite = PhyloUtils.getDistinctAminoAcids(Ints.asList(alignment.getSite(i)));
             List<Integer> allCodons = PhyloUtils.getCodonsFromAminoAcids(aminoAcidsAtSite);
 
-            if (allCodons.size() < codonCutoff)
+            if (allCodons.size() < codonCutoff) {
                 siteCodonCount.put(i, allCodons.size());
+                // Each evaluation is dominated by the eigen decomposition of the Q matrix
+                siteCosts.put(i, (long) allCodons.size() * allCodons.size() * allCodons.size());
+            }
         }
 
         // Order sites by number of codons at site, descending
@@ -311,11 +644,24 @@ public class Master {
     private void run() throws Exception {
         sites = getSites();
         servers = getServerAddresses();
+        partitions = partitionSites(sites, siteCosts, servers);
 
         double[] start = new double[]{globals.tau, globals.kappa, globals.pi[0], globals.pi[1], globals.pi[2], globals.mu};
 
         asyncHttpClient = getAsyncHttpClient();
+        try {
+            if (useFrames) frameClients = getFrameClients(servers);
+            optimiseOrEvaluate(start);
+        } finally {
+            // Including when the slaves have failed, so their threads don't keep the master running
+            asyncHttpClient.close();
+            for (FrameClient client : frameClients.values()) client.close();
+        }
+
+        System.out.printf("FINISHED!\n");
+    }
 
+    private void optimiseOrEvaluate(double[] start) throws Exception {
         if (optimiseGlobals) {
             int iteration = 0;
             while (iteration++ < 5) {
@@ -333,7 +679,7 @@ public class Master {
                 start = new double[]{start[0], start[1], pi[0], pi[1], pi[2], start[5]};
 
                 try {
-                    pair = dso.optimize(new GlobalParameterOptimiser(), GoalType.MAXIMIZE, start);
+                    pair = patternSearch ? optimiseByPatternSearch(start) : dso.optimize(new GlobalParameterOptimiser(), GoalType.MAXIMIZE, start);
                 } catch (FunctionEvaluationException me) {
                     System.out.println("Reached maximum number of evaluations!");
                     throw new RuntimeException(me);
@@ -357,14 +703,11 @@ public class Master {
             }
 
         } else {
-            evaluate(start);
+            evaluate(new double[]{start[0], start[1], start[2], start[3], start[4], 1 - start[2] - start[3] - start[4], start[5], 0.0});
         }
-
-        System.out.printf("FINISHED!\n");
-        asyncHttpClient.close();
     }
 
-    @Parameter(names = "-s", description = "Codon alignment file in Phylip sequential format", required = true)
+    @Parameter(names = "-s", description = "Codon alignment file in Phylip sequential format, or a binary codon alignment (see tdg.utils.CodonAlignmentConverter)", required = true)
     public String alignmentFile;
 
     @ParametersDelegate
@@ -373,7 +716,7 @@ public class Master {
     @ParametersDelegate
     public GlobalsOptions globals = new GlobalsOptions();
 
-    @Parameter(names = "-timeout", description = "How long to wait before timing out master-to-slave connection", required = false)
+    @Parameter(names = "-timeout", description = "How long (ms) to wait before timing out master-to-slave connection, or a slave's reply with -frames", required = false)
     public int requestTimeout = 60000000;
 
     @Parameter(names = "-max-connections", description = "Maximum number of connections from master to each slave host", required = false)
@@ -382,9 +725,15 @@ public class Master {
     @Parameter(names = "-thread-pool-size", description = "How many threads to have available to connect to each slave", required = false)
     public int threadPoolSize = 100;
 
+    @Parameter(names = "-frames", description = "Talk to the slaves with the binary frame protocol instead of HTTP", required = false)
+    public boolean useFrames = false;
+
     @Parameter(names = "-optimise-globals", description = "Optimise the global parameters", required = false)
     public boolean optimiseGlobals = false;
 
+    @Parameter(names = "-pattern-search", description = "Optimise the global parameters with a compass search, which evaluates 12 points at once, instead of Nelder-Mead", required = false)
+    public boolean patternSearch = false;
+
     @Parameter(names = "-codon-cutoff", description = "Only analyse sites with this maximum number of codons observed (just for testing).", required = false, hidden = true)
     public int codonCutoff = 100;
 
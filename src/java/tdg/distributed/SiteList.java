@@ -0,0 +1,57 @@
+package tdg.distributed;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Writes and reads lists of sites in the compact form used by Master and Slave for batch requests, e.g. "1-4,9,12-13".
+ * Order is kept, so a list is read back exactly as it was written.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ */
+final class SiteList {
+    private SiteList() {}
+
+    /**
+     * @return the sites, with each run of consecutive, ascending sites written as a range
+     */
+    static String format(Collection<Integer> sites) {
+        List<String> parts = Lists.newArrayList();
+        int start = -1, end = -1;
+
+        for (int site : sites) {
+            if (start != -1 && site == end + 1) {
+                end = site;
+                continue;
+            }
+            if (start != -1) parts.add(start == end ? Integer.toString(start) : start + "-" + end);
+            start = end = site;
+        }
+        if (start != -1) parts.add(start == end ? Integer.toString(start) : start + "-" + end);
+
+        return Joiner.on(",").join(parts);
+    }
+
+    /**
+     * @return the sites in a list written by format()
+     */
+    static List<Integer> parse(String sites) {
+        List<Integer> parsed = Lists.newArrayList();
+        if (sites == null || sites.length() == 0) return parsed;
+
+        for (String part : sites.split(",")) {
+            int dash = part.indexOf('-');
+            if (dash == -1) {
+                parsed.add(Integer.parseInt(part.trim()));
+            } else {
+                int start = Integer.parseInt(part.substring(0, dash).trim());
+                int end = Integer.parseInt(part.substring(dash + 1).trim());
+                for (int site = start; site <= end; site++) parsed.add(site);
+            }
+        }
+        return parsed;
+    }
+}
@@ -6,32 +6,46 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 import org.simpleframework.http.core.Container;
 import org.simpleframework.transport.connect.Connection;
 import org.simpleframework.transport.connect.SocketConnection;
 import org.simpleframework.util.thread.Scheduler;
-import pal.alignment.Alignment;
 import pal.tree.Tree;
 import tdg.SiteAnalyser;
 import tdg.cli.AnalyseOptions;
 import tdg.model.TDGGlobals;
+import tdg.utils.CodonAlignment;
 import tdg.utils.CoreUtils;
 import tdg.utils.Functions;
 import tdg.utils.PhyloUtils;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
@@ -40,19 +54,47 @@ public class Slave implements Container {
     private Scheduler scheduler;
     private AnalyseOptions options;
     private Tree tree;
-    private Alignment alignment;
-    private TDGGlobals globals;
-
-    LoadingCache<Integer, SiteAnalyser> siteAnalyserCache = CacheBuilder.newBuilder().maximumSize(1000).build(
-            new CacheLoader<Integer, SiteAnalyser>() {
-                @Override
-                public SiteAnalyser load(Integer site) throws Exception {
-                    SiteAnalyser sa = new SiteAnalyser(tree, alignment, globals, site, options);
-                    sa.run();
-                    return sa;
+    private CodonAlignment alignment;
+    private volatile TDGGlobals globals;
+    // Evaluates the sites of a batch request in parallel
+    private final ExecutorService siteExecutor;
+
+    // The sites the Master has sent us. Our cache holds all of them, so each site is only fitted once per refresh.
+    private final Set<Integer> assignedSites = Sets.newHashSet();
+    private int siteAnalyserCacheSize = MIN_CACHE_SIZE;
+    private static final int MIN_CACHE_SIZE = 1000;
+
+    // The line of the hostname file with the port of the frame protocol server
+    static final String FRAME_PORT_PREFIX = "frame:";
+
+    volatile LoadingCache<Integer, SiteAnalyser> siteAnalyserCache = newSiteAnalyserCache(MIN_CACHE_SIZE);
+
+    private LoadingCache<Integer, SiteAnalyser> newSiteAnalyserCache(int size) {
+        return CacheBuilder.newBuilder().maximumSize(size).build(
+                new CacheLoader<Integer, SiteAnalyser>() {
+                    @Override
+                    public SiteAnalyser load(Integer site) throws Exception {
+                        SiteAnalyser sa = new SiteAnalyser(tree, alignment, globals, site, options);
+                        sa.run();
+                        return sa;
+                    }
                 }
-            }
-    );
+        );
+    }
+
+    /**
+     * Adds the sites to those assigned to us, and grows the cache to hold them all, keeping the sites already fitted
+     */
+    private synchronized void assignSites(Collection<Integer> sites) {
+        assignedSites.addAll(sites);
+        if (assignedSites.size() <= siteAnalyserCacheSize) return;
+
+        siteAnalyserCacheSize = assignedSites.size();
+        LoadingCache<Integer, SiteAnalyser> cache = newSiteAnalyserCache(siteAnalyserCacheSize);
+        cache.putAll(siteAnalyserCache.asMap());
+        siteAnalyserCache = cache;
+        System.out.printf("Cache size is now %s sites.\n", siteAnalyserCacheSize);
+    }
 
 
 
@@ -70,6 +112,12 @@ public class Slave implements Container {
             // long startTime = System.currentTimeMillis();
 
             try {
+                if (request.getParameter("sites") != null) {
+                    List<Integer> sites = SiteList.parse(request.getParameter("sites"));
+                    evaluateSites(sites, request.getParameter("globals"), response);
+                    return;
+                }
+
                 int site = Integer.parseInt(request.getParameter("site"));
 
                 // System.out.printf("Site %s-- Task started.\n", site);
@@ -99,12 +147,148 @@ public class Slave implements Container {
         }
     }
 
+    /**
+     * Evaluates the lnL of each site with the current globals, using all worker threads, and responds with the lnLs as
+     * big-endian doubles (i.e. DataOutputStream.writeDouble()) in the order of the sites
+     *
+     * @param globalSets if not null, sets of globals (comma-separated, each set separated by ';') to evaluate each site
+     *                   with instead, responding with the lnLs of each site together
+     */
+    private void evaluateSites(List<Integer> sites, String globalSets, Response response) throws IOException {
+        double[] lnls;
+        try {
+            if (globalSets == null) {
+                lnls = evaluate(sites);
+            } else {
+                List<double[]> sets = Lists.newArrayList();
+                for (String set : globalSets.split(";")) {
+                    sets.add(Doubles.toArray(Lists.transform(Arrays.asList(set.split(",")), Functions.stringToDouble())));
+                }
+                lnls = evaluate(sites, toGlobals(sets));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sites.size() * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (double lnl : lnls) out.writeDouble(lnl);
+
+        response.set("Content-Type", "application/octet-stream");
+        response.setContentLength(bytes.size());
+        OutputStream body = response.getOutputStream();
+        bytes.writeTo(body);
+        body.close();
+    }
+
+    /**
+     * @return the lnL of each site with the current globals, in the order of the sites, using all worker threads
+     */
+    private double[] evaluate(List<Integer> sites) throws Exception {
+        return evaluate(sites, Collections.singletonList(globals));
+    }
+
+    /**
+     * Evaluates each site with each set of globals, keeping the site's fitness (i.e. fitted with the current globals).
+     * Sites are evaluated in parallel, and the sets of one site one after the other.
+     *
+     * @return the lnL of each site with each set of globals, in the order of the sites, the sets of a site together
+     */
+    private double[] evaluate(List<Integer> sites, final List<TDGGlobals> globalSets) throws Exception {
+        assignSites(sites);
+
+        List<Future<double[]>> lnls = Lists.newArrayListWithCapacity(sites.size());
+
+        for (final int site : sites) {
+            lnls.add(siteExecutor.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() throws Exception {
+                    SiteAnalyser sa = siteAnalyserCache.get(site);
+                    double[] l = new double[globalSets.size()];
+                    for (int i = 0; i < l.length; i++) l[i] = sa.evaluate(globalSets.get(i));
+                    return l;
+                }
+            }));
+        }
+
+        double[] result = new double[sites.size() * globalSets.size()];
+        for (int i = 0; i < sites.size(); i++) {
+            System.arraycopy(lnls.get(i).get(), 0, result, i * globalSets.size(), globalSets.size());
+        }
+        return result;
+    }
+
+    /**
+     * @param g tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma
+     */
+    private static TDGGlobals toGlobals(double[] g) {
+        return new TDGGlobals(g[0], g[1], new double[]{g[2], g[3], g[4], g[5]}, g[6], g[7]);
+    }
+
+    /**
+     * @param globalSets each of tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma
+     */
+    private static List<TDGGlobals> toGlobals(List<double[]> globalSets) {
+        List<TDGGlobals> globals = Lists.newArrayListWithCapacity(globalSets.size());
+        for (double[] g : globalSets) globals.add(toGlobals(g));
+        return globals;
+    }
+
+    /**
+     * @param g tau, kappa, pi_T, pi_C, pi_A, pi_G, mu, gamma
+     * @param refresh whether to refit every site with the new globals
+     */
+    private void updateGlobals(double[] g, boolean refresh) {
+        globals = toGlobals(g);
+        System.out.printf("Set %s.\n", globals.toString());
+
+        // Before replying, so the Master's next requests don't get the old fits
+        if (refresh) {
+            siteAnalyserCache.invalidateAll();
+            System.out.println("Refreshed cache.");
+        }
+    }
+
+    /**
+     * Handles the requests of the binary frame protocol, as the HTTP requests are handled
+     */
+    private FrameProtocol.Frame handleFrame(FrameProtocol.Frame request) throws Exception {
+        ByteBuffer payload = request.payload;
+
+        switch (request.type) {
+            case FrameProtocol.UPDATE_GLOBALS:
+                updateGlobals(FrameProtocol.getGlobals(payload), FrameProtocol.getRefresh(payload));
+                return new FrameProtocol.Frame(request.requestId, FrameProtocol.OK, ByteBuffer.allocate(0));
+            case FrameProtocol.UPDATE_GLOBALS_AND_EVALUATE:
+                updateGlobals(FrameProtocol.getGlobals(payload), FrameProtocol.getRefresh(payload));
+                return evaluateFrame(request, payload);
+            case FrameProtocol.EVALUATE:
+                return evaluateFrame(request, payload);
+            case FrameProtocol.EVALUATE_GLOBALS:
+                List<TDGGlobals> globalSets = toGlobals(FrameProtocol.getGlobalSets(payload));
+                List<Integer> sites = Ints.asList(FrameProtocol.getSites(payload));
+                return new FrameProtocol.Frame(request.requestId, FrameProtocol.RESULT, FrameProtocol.resultPayload(evaluate(sites, globalSets)));
+            default:
+                throw new IOException("Unknown request type " + request.type);
+        }
+    }
+
+    /**
+     * @param payload positioned at the list of sites
+     */
+    private FrameProtocol.Frame evaluateFrame(FrameProtocol.Frame request, ByteBuffer payload) throws Exception {
+        List<Integer> sites = Ints.asList(FrameProtocol.getSites(payload));
+        return new FrameProtocol.Frame(request.requestId, FrameProtocol.RESULT, FrameProtocol.resultPayload(evaluate(sites)));
+    }
+
     public Slave(Scheduler scheduler, AnalyseOptions options) {
         this.scheduler = scheduler;
         this.options = options;
+        this.siteExecutor = Executors.newFixedThreadPool(options.threads);
 
         this.tree = PhyloUtils.readTree(options.treeFile);
-        this.alignment = PhyloUtils.readAlignment(options.alignmentFile);
+        this.alignment = PhyloUtils.readCodonAlignment(options.alignmentFile, tree);
         this.globals = new TDGGlobals(options.globals.tau, options.globals.kappa, options.globals.pi, options.globals.mu, options.globals.gamma);
     }
 
@@ -115,26 +299,17 @@ public class Slave implements Container {
 
 
                 List<Double> g = Lists.transform(Arrays.asList(request.getParameter("updateglobals").split(",")), Functions.stringToDouble());
-
-                globals = new TDGGlobals(g.get(0), g.get(1), new double[]{g.get(2), g.get(3), g.get(4), g.get(5)}, g.get(6), g.get(7));
-                System.out.printf("Set %s.\n", globals.toString());
+                updateGlobals(Doubles.toArray(g), request.getParameter("refresh").equals("true"));
 
                 PrintStream body = response.getPrintStream();
                 response.set("Content-Type", "text/plain");
                 body.print("OK.");
                 body.close();
 
-                if (request.getParameter("refresh").equals("true")) {
-                    siteAnalyserCache.invalidateAll();
-                    System.out.println("Refreshed cache.");
-                }
-
                 // siteAnalyserCache.invalidateAll();
 
+                return;
 
-            } else {
-                int site = Integer.parseInt(request.getParameter("site"));
-                // System.out.printf("Site %s - Received request. Creating task and adding to queue.\n", site);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -157,19 +332,28 @@ public class Slave implements Container {
         }
 
         Scheduler scheduler = new Scheduler(options.threads);
-        Container container = new Slave(scheduler, options);
-        Connection connection = new SocketConnection(container);
+        final Slave slave = new Slave(scheduler, options);
+        Connection connection = new SocketConnection(slave);
 
         int freePort = CoreUtils.findFreePort();
 
         SocketAddress address = new InetSocketAddress(freePort);
         connection.connect(address);
 
-        System.out.printf("%s started on port %s with %s worker thread(s).\n", Slave.class.getName(), freePort, options.threads);
-        writeHostnameFile(freePort);
+        // The binary frame protocol, for a Master run with -frames
+        int framePort = CoreUtils.findFreePort();
+        new FrameServer(framePort, new FrameServer.Handler() {
+            @Override
+            public FrameProtocol.Frame handle(FrameProtocol.Frame request) throws Exception {
+                return slave.handleFrame(request);
+            }
+        }).start();
+
+        System.out.printf("%s started on port %s (frames on port %s) with %s worker thread(s).\n", Slave.class.getName(), freePort, framePort, options.threads);
+        writeHostnameFile(freePort, framePort);
     }
 
-    private static void writeHostnameFile(int port) throws Exception {
+    private static void writeHostnameFile(int port, int framePort) throws Exception {
         InetAddress in = InetAddress.getLocalHost();
         InetAddress[] all = InetAddress.getAllByName(in.getHostName());
 
@@ -179,6 +363,7 @@ public class Slave implements Container {
         for (InetAddress anAll : all) {
             out.write(anAll + ":" + port + "\n");
         }
+        out.write(FRAME_PORT_PREFIX + framePort + "\n");
 
         out.close();
     }
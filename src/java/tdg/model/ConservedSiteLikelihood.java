@@ -0,0 +1,183 @@
+package tdg.model;
+
+import com.google.common.collect.Lists;
+import pal.tree.Tree;
+import tdg.Constants;
+import tdg.utils.GeneticCode;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The log-likelihood of the homogeneous model at a conserved site, i.e. one where a single amino acid is observed. With
+ * a single amino acid there are no fitness parameters to estimate, so the model, and the P(t) matrix of every branch,
+ * depends only on the amino acid, the tree and the global parameters. These are calculated once per amino acid and
+ * shared by all conserved sites; each site then only needs a pruning pass over matrices of 1 to 6 codons.
+ * <p/>
+ * Gives the same log-likelihood as LikelihoodCalculator with a single TDGCodonModel for the amino acid. Thread-safe.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see tdg.SiteAnalyser
+ */
+public class ConservedSiteLikelihood {
+    // The instance for the tree and globals most recently used, and the last few used, most recent first
+    private static volatile ConservedSiteLikelihood current;
+    private static final LinkedList<ConservedSiteLikelihood> recent = Lists.newLinkedList();
+
+    private final Tree tree;
+    private final TDGGlobals globals;
+    private final TraversalPlan plan;
+    private final AminoAcidModel[] aminoAcidModels = new AminoAcidModel[GeneticCode.AMINO_ACID_STATES];
+
+    private ConservedSiteLikelihood(Tree tree, TDGGlobals globals) {
+        this.tree = tree;
+        this.globals = globals;
+        this.plan = new TraversalPlan(tree);
+    }
+
+    /**
+     * @return the shared instance for this tree and these global parameters. Only the last
+     * Constants.CONSERVED_SITE_INSTANCES instances are kept, e.g. a Slave drops its matrices a few updates of the
+     * globals later, but can evaluate sites for a batch of several globals without making them again.
+     */
+    public static ConservedSiteLikelihood getInstance(Tree tree, TDGGlobals globals) {
+        ConservedSiteLikelihood c = current;
+        if (c != null && c.tree == tree && c.globals == globals) return c;
+
+        synchronized (recent) {
+            for (Iterator<ConservedSiteLikelihood> i = recent.iterator(); i.hasNext(); ) {
+                c = i.next();
+                if (c.tree == tree && c.globals == globals) {
+                    i.remove();
+                    recent.addFirst(c);
+                    current = c;
+                    return c;
+                }
+            }
+
+            c = new ConservedSiteLikelihood(tree, globals);
+            recent.addFirst(c);
+            if (recent.size() > Constants.CONSERVED_SITE_INSTANCES) recent.removeLast();
+            current = c;
+            return c;
+        }
+    }
+
+    /**
+     * @param tipStates the codon of each tip, in the order of PhyloUtils.getTipNames(), with unknown and stop codons
+     *                  already set to GeneticCode.UNKNOWN_STATE
+     * @param aminoAcid the only amino acid observed at the site
+     */
+    public double function(int[] tipStates, int aminoAcid) {
+        AminoAcidModel m = getAminoAcidModel(aminoAcid);
+        final int n = m.matrixSize;
+
+        double[][] internalConditionals = new double[plan.internalCount][n];
+        double logScaling = 0.0;
+        long scaleExponents = 0;
+
+        for (int i = 0; i < plan.nodeOrder.length; i++) {
+            int node = plan.nodeOrder[i];
+            double[] partial = internalConditionals[node];
+            Arrays.fill(partial, 1.0);
+
+            for (int b = plan.branchStart[i]; b < plan.branchStart[i + 1]; b++) {
+                final double[] Pt = m.branchMatrices[b];
+
+                if (plan.childIsTip[b]) {
+                    int codon = tipStates[plan.child[b]];
+
+                    if (GeneticCode.getInstance().isUnknownCodonState(codon)) {
+                        for (int r = 0; r < n; r++) {
+                            double branchProb = 0.0;
+                            for (int j = 0; j < n; j++) branchProb += Pt[r * n + j];
+                            partial[r] *= branchProb;
+                        }
+                    } else {
+                        int j = m.codonToIndex[codon];
+                        for (int r = 0; r < n; r++) partial[r] *= Pt[r * n + j];
+                    }
+                } else {
+                    double[] lowerConditional = internalConditionals[plan.child[b]];
+                    for (int r = 0; r < n; r++) {
+                        double branchProb = 0.0;
+                        for (int j = 0; j < n; j++) branchProb += lowerConditional[j] * Pt[r * n + j];
+                        partial[r] *= branchProb;
+                    }
+                }
+            }
+
+            // Scaled as LikelihoodCalculator does
+            if (Constants.USE_SCALING && Constants.SCALING_BY_EXPONENT) {
+                scaleExponents += LikelihoodCalculator.scaleByExponent(partial, n);
+            } else if (Constants.USE_SCALING && node % Constants.SCALING_NODE_STEP == 0) {
+                double scalingFactor = 0;
+                for (double conditional : partial) {
+                    if (conditional > 0 && conditional > scalingFactor) scalingFactor = conditional;
+                }
+
+                if (scalingFactor < Constants.SCALING_THRESHOLD) {
+                    for (int j = 0; j < n; j++) partial[j] = partial[j] / scalingFactor;
+                    logScaling += Math.log(scalingFactor);
+                }
+            }
+        }
+
+        double[] conditionals = internalConditionals[plan.root];
+        double[] f = m.model.getCompactCodonFrequencies();
+
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) sum += conditionals[i] * f[i];
+
+        if (sum < 0) sum = 0;
+
+        return Math.log(sum) + logScaling + scaleExponents * LikelihoodCalculator.LN2;
+    }
+
+    /**
+     * @return equilibrium frequency of each of the 20 amino acids under the model for this amino acid
+     */
+    public double[] getAminoAcidFrequencies(int aminoAcid) {
+        return getAminoAcidModel(aminoAcid).model.getAminoAcidFrequencies();
+    }
+
+    private AminoAcidModel getAminoAcidModel(int aminoAcid) {
+        AminoAcidModel m = aminoAcidModels[aminoAcid];
+        if (m == null) {
+            synchronized (aminoAcidModels) {
+                m = aminoAcidModels[aminoAcid];
+                if (m == null) {
+                    m = new AminoAcidModel(aminoAcid);
+                    aminoAcidModels[aminoAcid] = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * The codon model of a single amino acid, and its P(t) for every branch of the tree. Read-only once made.
+     */
+    private class AminoAcidModel {
+        private final TDGCodonModel model;
+        private final int matrixSize;
+        private final int[] codonToIndex = new int[GeneticCode.CODON_STATES];
+        private final double[][] branchMatrices;
+
+        AminoAcidModel(int aminoAcid) {
+            model = new TDGCodonModel(globals, new Fitness(new double[]{Constants.FITNESS_FIXED_FOR_RELATIVE}, false), Lists.newArrayList(aminoAcid));
+            model.updateModel();
+            matrixSize = model.getSiteCodons().length;
+
+            Arrays.fill(codonToIndex, -1);
+            for (int i = 0; i < matrixSize; i++) codonToIndex[model.getSiteCodons()[i]] = i;
+
+            branchMatrices = new double[plan.child.length][];
+            for (int b = 0; b < plan.child.length; b++) {
+                // The model's matrix is only valid until its next call, so keep a copy
+                branchMatrices[b] = model.getCompactProbabilityMatrix(plan.branchLength[b]).clone();
+            }
+        }
+    }
+}
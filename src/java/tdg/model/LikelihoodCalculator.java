@@ -1,14 +1,12 @@
 package tdg.model;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.primitives.Doubles;
-import org.apache.commons.math.util.MathUtils;
-import pal.tree.Node;
+import com.google.common.primitives.Ints;
 import pal.tree.Tree;
 import tdg.Constants;
-import tdg.cli.AnalyseOptions;
 import tdg.utils.GeneticCode;
+import tdg.utils.PhyloUtils;
 
 import java.util.Arrays;
 import java.util.List;
@@ -16,61 +14,114 @@ import java.util.Map;
 
 /**
  * Felsenstein's pruning algorithm to calculate the likelihood for codon based models. Can deal with heterogenous models.
+ * <p/>
+ * Conditionals, tip vectors and transition probability matrices are all held in the site's compact codon space, i.e.
+ * index i refers to codon siteCodons[i] of the root model. Clade models that order the same codons differently have
+ * their matrices permuted into the root ordering. The tree is walked using a TraversalPlan built once per calculator.
+ * <p/>
+ * Each clade model is only updated, and the conditionals only recalculated, where its fitness has changed since the
+ * last calculation: a node's conditional is kept unless the subtree below it has a branch using a changed model, and
+ * a branch's factor is kept unless the branch or its subtree uses one. E.g. when only one clade's fitness changes,
+ * just the nodes of that clade and those on the path from it to the root are recalculated.
  *
  * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
  */
 public class LikelihoodCalculator {
-    private final Tree tree;
-    private String ROOT_MODEL_NAME;
-    private final Map<String, Integer> states;
-    private final Map<String, TDGCodonModel> cladeModels = Maps.newHashMap();
-    private final double[] probMatrix = new double[GeneticCode.CODON_STATES * GeneticCode.CODON_STATES];
-    private final double[] probMatrix0 = new double[GeneticCode.CODON_STATES * GeneticCode.CODON_STATES];
-    private final double[] probMatrix1 = new double[GeneticCode.CODON_STATES * GeneticCode.CODON_STATES];
-
-    private List<Parameter> parameters;
-    private final Map<Node, String> nodeLabels = Maps.newHashMap();
+    static final double LN2 = Math.log(2);
+
+    private final TraversalPlan plan;
+    private final int[] tipStates; // codon of each tip, by tip node number
+    // Clade models in the order they were added; the first is the "root" model
+    private final List<String> cladeNames = Lists.newArrayList();
+    private TDGCodonModel[] models = new TDGCodonModel[0];
+    // For clade models that order the site codons differently to the root model: model index -> root index
+    private int[][] cladeCodonOrders = new int[0][];
+    private boolean modelsAssigned = false;
+    private double[] probMatrix;
+    private double[] probMatrix0;
+    private double[] probMatrix1;
+    // For the product of each P(t) and conditional
+    private ProbabilityMatrixKernel kernel;
+    // The conditional where the model switches on a hostshift branch
+    private double[] hostshiftConditional;
+
+    private Parameter[] parameters;
     private double logScaling = 0.0;
 
     private int[] siteCodons;
-
-    private final double[][] tipConditionals;
-    private final double[][] internalConditionals;
+    private int matrixSize;
+
+    private double[][] tipConditionals;
+    private double[][] internalConditionals;
+    // For each branch, its factor of the parent's conditional (i.e. P(t) times the child's conditional)
+    private double[][] branchConditionals;
+    // For each internal node, the factor its conditional was divided by (1.0 if it wasn't scaled), and its log (or,
+    // with Constants.SCALING_BY_EXPONENT, the factor's power of two)
+    private double[] nodeScales;
+    private double[] nodeLogScales;
+    private int[] nodeScaleExponents;
+
+    // The fitness each model was last updated with, and whether the model has changed since the last calculation
+    private double[][] modelFitness = new double[0][];
+    private boolean[] modelChanged = new boolean[0];
+    // Whether each internal node and branch has to be recalculated. Everything is until the first calculation.
+    private boolean[] nodeChanged;
+    private boolean[] branchChanged;
+    private boolean conditionalsValid = false;
+    // The (scaled) likelihood at the root, from the last call to calculateLogLikelihood()
+    private double rootLikelihood;
+
+    // Only needed for gradients, so created on first use
+    private double[][] outsideConditionals;
+    private ProbabilityMatrixGradient[] modelGradients;
+    private double[][] fitnessGradients;
+    private double[] up, upMiddle, lowMiddle, modelUp, modelLow, modelOut;
+    // The models whose gradients are being calculated, and the nodes with a branch of one of them below
+    private boolean[] gradientModels;
+    private boolean[] gradientNodes;
 
     private Prior prior;
 
     public LikelihoodCalculator(Tree tree, Map<String, Integer> states, Prior prior) {
-        this.tree = tree;
-        this.states = states;
+        this(tree, PhyloUtils.getTipStates(tree, states), prior);
+    }
+
+    /**
+     * @param tipStates the codon of each tip of the tree, in the order of PhyloUtils.getTipNames() (e.g. a site of a
+     *                  CodonAlignment read for this tree)
+     */
+    public LikelihoodCalculator(Tree tree, int[] tipStates, Prior prior) {
+        this.plan = new TraversalPlan(tree);
+        this.tipStates = tipStates;
 
         if (prior != null) {
             this.prior = prior;
         }
-
-        // set up name lookup
-        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
-            Node n = tree.getExternalNode(i);
-            nodeLabels.put(n, n.getIdentifier().getName());
-        }
-        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
-            Node n = tree.getInternalNode(i);
-            nodeLabels.put(n, n.getIdentifier().getName());
-        }
-
-        this.tipConditionals = new double[tree.getExternalNodeCount()][GeneticCode.CODON_STATES];
-        this.internalConditionals = new double[tree.getInternalNodeCount()][GeneticCode.CODON_STATES];
-        fillTipConditionals();
     }
 
     private void fillTipConditionals() {
-        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
-            String parentName = getNodeLabel(tree.getExternalNode(i));
-            int codon = states.get(parentName);
+        this.tipConditionals = new double[plan.tipCount][matrixSize];
+        this.internalConditionals = new double[plan.internalCount][matrixSize];
+        this.branchConditionals = new double[plan.child.length][matrixSize];
+        this.nodeScales = new double[plan.internalCount];
+        this.nodeLogScales = new double[plan.internalCount];
+        this.nodeScaleExponents = new int[plan.internalCount];
+        this.nodeChanged = new boolean[plan.internalCount];
+        this.branchChanged = new boolean[plan.child.length];
+        this.conditionalsValid = false;
+
+        // Look up the compact index of each codon observed at the site
+        int[] codonToIndex = new int[GeneticCode.CODON_STATES];
+        Arrays.fill(codonToIndex, -1);
+        for (int i = 0; i < matrixSize; i++) codonToIndex[siteCodons[i]] = i;
+
+        for (int i = 0; i < plan.tipCount; i++) {
+            int codon = tipStates[i];
 
             if (GeneticCode.getInstance().isUnknownCodonState(codon)) {
                 Arrays.fill(tipConditionals[i], 1.0);
-            } else {
-                tipConditionals[i][codon] = 1.0;
+            } else if (codonToIndex[codon] >= 0) {
+                tipConditionals[i][codonToIndex[codon]] = 1.0;
 
 /*                int aai = GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(codon);
                 int[] codoni = GeneticCode.getInstance().getCodonIndexFromAminoAcidIndex(aai);
@@ -82,10 +133,6 @@ public class LikelihoodCalculator {
         }
     }
 
-    private String getNodeLabel(Node n) {
-        return nodeLabels.get(n);
-    }
-
     public double function(double[] parameters) {
         updateParameters(parameters);
         double l = calculateLogLikelihood();
@@ -101,75 +148,202 @@ public class LikelihoodCalculator {
         return l + p;
     }
 
+    /**
+     * The log-likelihood, as function(), and its gradient with respect to the parameters. The derivatives of the
+     * log-likelihood are calculated analytically, from each model's eigen decomposition and a pre-order pass over the
+     * tree (see ProbabilityMatrixGradient). The derivatives of the prior, if any, are calculated numerically.
+     *
+     * @param gradient filled with the derivative with respect to each parameter
+     */
+    public double function(double[] parameters, double[] gradient) {
+        return function(parameters, gradient, null);
+    }
+
+    /**
+     * As function(parameters, gradient), but only the derivatives with respect to one fitness parameter (e.g. of one
+     * clade, while the others are fixed) are calculated. The pre-order pass only visits the parts of the tree above
+     * the branches of that parameter's models, and only those models' gradients are built.
+     *
+     * @param only the parameter to calculate the derivatives of, or null for every parameter
+     * @param gradient filled with the derivative with respect to each parameter of only, and zero for the others
+     */
+    public double function(double[] parameters, double[] gradient, Parameter only) {
+        double l = function(parameters);
+
+        Arrays.fill(gradient, 0.0);
+        if (rootLikelihood > 0) {
+            calculateGradient(gradient, only);
+        }
+
+        if (prior != null) {
+            // The positions of only's values in parameters
+            int from = 0, to = parameters.length;
+            if (only != null) {
+                int offset = 0;
+                for (Parameter p : this.parameters) {
+                    if (p.getClass() != Fitness.class) continue;
+                    int len = ((double[]) p.get()).length - 1;
+                    if (p == only) {
+                        from = offset;
+                        to = offset + len;
+                    }
+                    offset += len;
+                }
+            }
+
+            double h = 1e-6;
+            for (int i = from; i < to; i++) {
+                double x = parameters[i];
+                parameters[i] = x + h;
+                double p1 = prior.calculate(parameters);
+                parameters[i] = x - h;
+                double p0 = prior.calculate(parameters);
+                parameters[i] = x;
+                gradient[i] += (p1 - p0) / (2 * h);
+            }
+        }
+
+        return l;
+    }
+
     private double calculateLogLikelihood() {
-        logScaling = 0.0;
+        if (!modelsAssigned) {
+            plan.assignModels(cladeNames);
+            modelsAssigned = true;
+            conditionalsValid = false;
+        }
+
+        findChangedBranches();
         double[] conditionals = downTree();
-        double[] f = cladeModels.get(ROOT_MODEL_NAME).getCodonFrequencies();
+        conditionalsValid = true;
+        Arrays.fill(modelChanged, false);
+
+        // Summed in node order whether or not the node was recalculated, so the result doesn't depend on what changed
+        logScaling = 0.0;
+        long scaleExponents = 0;
+        for (int node : plan.nodeOrder) {
+            logScaling += nodeLogScales[node];
+            scaleExponents += nodeScaleExponents[node];
+        }
+        logScaling += scaleExponents * LN2;
+
+        double[] f = models[0].getCompactCodonFrequencies();
 
         double sum = 0.0;
-        for (int i = 0; i < GeneticCode.CODON_STATES; i++)
+        for (int i = 0; i < matrixSize; i++)
             sum += conditionals[i] * f[i];
 
         if (sum < 0) sum = 0;
+        rootLikelihood = sum;
 
         return Math.log(sum) + logScaling;
     }
 
-    private double[] downTree() {
-        //long start = CodeTimer.start();
-        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
-
-            Node node = tree.getInternalNode(i);
-
-            double[] partial = new double[GeneticCode.CODON_STATES];
-            for (int j : siteCodons) partial[j] = 1.0;
-
-            for (int j = 0; j < node.getChildCount(); j++) {
-                Node child = node.getChild(j);
+    /**
+     * Marks the branches that use a changed model, and the nodes above them, in post-order
+     */
+    private void findChangedBranches() {
+        final int[] nodeOrder = plan.nodeOrder;
+        final int[] branchStart = plan.branchStart;
+        final int[] child = plan.child;
+        final boolean[] childIsTip = plan.childIsTip;
+        final int[] branchModel = plan.branchModel;
+        final int[] hostshiftModel = plan.hostshiftModel;
+
+        for (int i = 0; i < nodeOrder.length; i++) {
+            boolean changed = false;
+
+            for (int b = branchStart[i]; b < branchStart[i + 1]; b++) {
+                branchChanged[b] = !conditionalsValid
+                        || modelChanged[branchModel[b]]
+                        || (hostshiftModel[b] != TraversalPlan.NO_MODEL && modelChanged[hostshiftModel[b]])
+                        || (!childIsTip[b] && nodeChanged[child[b]]);
+                changed |= branchChanged[b];
+            }
 
-                double[] lowerConditional;
+            nodeChanged[nodeOrder[i]] = changed;
+        }
+    }
 
-                if (child.isLeaf()) {
-                    lowerConditional = tipConditionals[child.getNumber()];
-                } else {
-                    lowerConditional = internalConditionals[child.getNumber()];
+    private double[] downTree() {
+        //long start = CodeTimer.start();
+        final int[] nodeOrder = plan.nodeOrder;
+        final int[] branchStart = plan.branchStart;
+        final int[] child = plan.child;
+        final boolean[] childIsTip = plan.childIsTip;
+        final double[] branchLength = plan.branchLength;
+        final int[] branchModel = plan.branchModel;
+        final int[] hostshiftModel = plan.hostshiftModel;
+
+        for (int i = 0; i < nodeOrder.length; i++) {
+            int node = nodeOrder[i];
+
+            // Nothing below this node has changed, so its conditional (and scale) are as last calculated
+            if (!nodeChanged[node]) continue;
+
+            double[] partial = internalConditionals[node];
+            Arrays.fill(partial, 1.0);
+            nodeScales[node] = 1.0;
+            nodeLogScales[node] = 0.0;
+            nodeScaleExponents[node] = 0;
+
+            for (int b = branchStart[i]; b < branchStart[i + 1]; b++) {
+                if (!branchChanged[b]) {
+                    double[] branchConditional = branchConditionals[b];
+                    for (int j = 0; j < matrixSize; j++) partial[j] *= branchConditional[j];
+                    continue;
                 }
 
-                if (cladeModels.size() == 1) { // homogeneous model
-
-                    cladeModels.get(ROOT_MODEL_NAME).getProbabilityMatrix(probMatrix, child.getBranchLength());
-                    updateIntraCladeConditionals(lowerConditional, partial, probMatrix);
+                double[] lowerConditional = childIsTip[b] ? tipConditionals[child[b]] : internalConditionals[child[b]];
 
-                } else { // non-homogeneous model
+                if (hostshiftModel[b] == TraversalPlan.NO_MODEL) {
 
-                    if (getNodeLabel(node).length() == 0 // the root of the tree is a parent without a label
-                            || getNodeLabel(child).substring(0, 2).equals(getNodeLabel(node).substring(0, 2))) { // or we're not switching to a different model
+                    updateIntraCladeConditionals(lowerConditional, partial, branchConditionals[b],
+                            getProbabilityMatrix(branchModel[b], branchLength[b], probMatrix));
 
-                        cladeModels.get(getNodeLabel(child).substring(0, 2)).getProbabilityMatrix(probMatrix, child.getBranchLength());
-                        updateIntraCladeConditionals(lowerConditional, partial, probMatrix);
+                } else { // this is a hostshift!
 
-                    } else { // this is a hostshift!
+                    updateInterCladeConditionals(lowerConditional, partial, branchConditionals[b],
+                            getProbabilityMatrix(hostshiftModel[b], branchLength[b] * Constants.CLADE_BRANCH_SPLIT, probMatrix0),
+                            getProbabilityMatrix(branchModel[b], branchLength[b] * (1 - Constants.CLADE_BRANCH_SPLIT), probMatrix1));
 
-                        cladeModels.get(getNodeLabel(node).substring(0, 2)).getProbabilityMatrix(probMatrix0, child.getBranchLength() * Constants.CLADE_BRANCH_SPLIT);
-                        cladeModels.get(getNodeLabel(child).substring(0, 2)).getProbabilityMatrix(probMatrix1, child.getBranchLength() * (1 - Constants.CLADE_BRANCH_SPLIT));
-                        updateInterCladeConditionals(lowerConditional, partial, probMatrix0, probMatrix1);
-
-                    }
                 }
             }
 
             if (Constants.USE_SCALING) {
                 scaleConditionals(node, partial);
             }
-
-            internalConditionals[node.getNumber()] = partial;
         }
         //CodeTimer.store("downTree", start);
-        return internalConditionals[tree.getRoot().getNumber()];
+        return internalConditionals[plan.root];
+    }
+
+    /**
+     * Gets the compact P(t) matrix of the clade model, in the codon order of the root model. If the clade model orders
+     * its codons differently, the matrix is permuted into the given buffer.
+     */
+    private double[] getProbabilityMatrix(int model, double branchLength, double[] buffer) {
+        double[] Pt = models[model].getCompactProbabilityMatrix(branchLength);
+        int[] order = cladeCodonOrders[model];
+
+        if (order == null) return Pt;
+
+        for (int i = 0; i < matrixSize; i++) {
+            for (int j = 0; j < matrixSize; j++) {
+                buffer[order[i] * matrixSize + order[j]] = Pt[i * matrixSize + j];
+            }
+        }
+        return buffer;
     }
 
-    private void scaleConditionals(Node node, double[] conditionals) {
-        if (node.getNumber() % Constants.SCALING_NODE_STEP == 0) {
+    private void scaleConditionals(int node, double[] conditionals) {
+        if (Constants.SCALING_BY_EXPONENT) {
+            int exponent = scaleByExponent(conditionals, matrixSize);
+            if (exponent != 0) {
+                nodeScales[node] = Math.scalb(1.0, exponent);
+                nodeScaleExponents[node] = exponent;
+            }
+        } else if (node % Constants.SCALING_NODE_STEP == 0) {
             double scalingFactor = 0;
             for (double conditional : conditionals) {
                 if (conditional > 0 && conditional > scalingFactor) {
@@ -181,32 +355,206 @@ public class LikelihoodCalculator {
                 for (int i = 0; i < conditionals.length; i++) {
                     conditionals[i] = conditionals[i] / scalingFactor;
                 }
-                logScaling += Math.log(scalingFactor);
+                nodeScales[node] = scalingFactor;
+                nodeLogScales[node] = Math.log(scalingFactor);
             }
         }
     }
 
-    private void updateInterCladeConditionals(double[] lowerConditional, double[] conditionals, double[] probMatrix0, double[] probMatrix1) {
-        double[] probMatrix = new double[GeneticCode.CODON_STATES * GeneticCode.CODON_STATES];
-        for (int i : siteCodons) {
-            double branchProb = 0.0;
-            for (int j : siteCodons) {
-                for (int k : siteCodons) {
-                    probMatrix[i * GeneticCode.CODON_STATES + j] += probMatrix0[i * GeneticCode.CODON_STATES + k] * probMatrix1[k * GeneticCode.CODON_STATES + j];
+    /**
+     * If the largest of the conditionals is below Constants.SCALING_THRESHOLD, multiplies them all by a power of two
+     * so the largest is in [1, 2). Exact, as only the exponents change.
+     *
+     * @return the power of two the conditionals were divided by, or 0 if they weren't scaled
+     */
+    static int scaleByExponent(double[] conditionals, int n) {
+        double max = 0;
+        for (int i = 0; i < n; i++) {
+            if (conditionals[i] > max) max = conditionals[i];
+        }
+
+        if (max == 0 || max >= Constants.SCALING_THRESHOLD) return 0;
+
+        // A subnormal maximum is scaled to below 1, and so again at the next node
+        int exponent = Math.getExponent(max);
+        double factor = Math.scalb(1.0, -exponent);
+        for (int i = 0; i < n; i++) conditionals[i] *= factor;
+        return exponent;
+    }
+
+    /**
+     * A hostshift branch: P0 (parent's model, upper part) and P1 (child's model, lower part). The factor is
+     * P0 (P1 v), i.e. the conditional at the point where the model switches and then at the top of the branch, so two
+     * matrix-vector products rather than the matrix product P0 P1.
+     */
+    private void updateInterCladeConditionals(double[] lowerConditional, double[] conditionals, double[] branchConditional, double[] probMatrix0, double[] probMatrix1) {
+        kernel.multiply(probMatrix1, lowerConditional, hostshiftConditional, matrixSize);
+        kernel.multiply(probMatrix0, hostshiftConditional, branchConditional, matrixSize);
+        for (int i = 0; i < matrixSize; i++) {
+            conditionals[i] *= branchConditional[i];
+        }
+    }
+
+    private void updateIntraCladeConditionals(double[] lowerConditional, double[] conditionals, double[] branchConditional, double[] probMatrix) {
+        kernel.multiply(probMatrix, lowerConditional, branchConditional, matrixSize);
+        for (int i = 0; i < matrixSize; i++) {
+            conditionals[i] *= branchConditional[i];
+        }
+    }
+
+    /**
+     * Adds the derivative of the log-likelihood from the last calculateLogLikelihood() with respect to each parameter
+     * to gradient. Walks the tree root to tips, passing down the "outside" vector of each node: everything in the
+     * likelihood except the subtree below the node (so that L = outside . conditional at every node).
+     *
+     * @param only if not null, only the derivatives with respect to this parameter are added
+     */
+    private void calculateGradient(double[] gradient, Parameter only) {
+        if (modelGradients == null || modelGradients.length != models.length) {
+            outsideConditionals = new double[plan.internalCount][];
+            for (int i = 0; i < plan.internalCount; i++) outsideConditionals[i] = new double[matrixSize];
+            modelGradients = new ProbabilityMatrixGradient[models.length];
+            fitnessGradients = new double[models.length][];
+            for (int m = 0; m < models.length; m++) {
+                modelGradients[m] = new ProbabilityMatrixGradient(models[m]);
+                fitnessGradients[m] = new double[models[m].getFitness().get().length];
+            }
+            up = new double[matrixSize];
+            upMiddle = new double[matrixSize];
+            lowMiddle = new double[matrixSize];
+            modelUp = new double[matrixSize];
+            modelLow = new double[matrixSize];
+            modelOut = new double[matrixSize];
+            gradientModels = new boolean[models.length];
+            gradientNodes = new boolean[plan.internalCount];
+        }
+
+        for (int m = 0; m < models.length; m++) {
+            gradientModels[m] = only == null || models[m].getFitness() == only;
+            if (!gradientModels[m]) continue;
+            modelGradients[m].reset();
+            Arrays.fill(fitnessGradients[m], 0.0);
+        }
+
+        final int[] nodeOrder = plan.nodeOrder;
+        final int[] branchStart = plan.branchStart;
+        final int[] child = plan.child;
+        final boolean[] childIsTip = plan.childIsTip;
+        final double[] branchLength = plan.branchLength;
+        final int[] branchModel = plan.branchModel;
+        final int[] hostshiftModel = plan.hostshiftModel;
+
+        // The nodes with a branch of a model in gradientModels below them, in post-order
+        for (int i = 0; i < nodeOrder.length; i++) {
+            boolean below = false;
+            for (int b = branchStart[i]; b < branchStart[i + 1]; b++) {
+                below |= isGradientBranch(b) || (!childIsTip[b] && gradientNodes[child[b]]);
+            }
+            gradientNodes[nodeOrder[i]] = below;
+        }
+
+        System.arraycopy(models[0].getCompactCodonFrequencies(), 0, outsideConditionals[plan.root], 0, matrixSize);
+
+        // Internal nodes in pre-order, i.e. parents before children
+        for (int i = nodeOrder.length - 1; i >= 0; i--) {
+            int node = nodeOrder[i];
+            // Not needed (nor its outside vector calculated)
+            if (!gradientNodes[node]) continue;
+
+            double[] outside = outsideConditionals[node];
+            double scale = nodeScales[node];
+
+            for (int b = branchStart[i]; b < branchStart[i + 1]; b++) {
+                boolean childNeeded = !childIsTip[b] && gradientNodes[child[b]];
+                if (!childNeeded && !isGradientBranch(b)) continue;
+
+                // Everything above this branch: the parent's outside vector and its other branches
+                for (int k = 0; k < matrixSize; k++) up[k] = outside[k] / scale;
+                for (int s = branchStart[i]; s < branchStart[i + 1]; s++) {
+                    if (s == b) continue;
+                    double[] sibling = branchConditionals[s];
+                    for (int k = 0; k < matrixSize; k++) up[k] *= sibling[k];
+                }
+
+                double[] low = childIsTip[b] ? tipConditionals[child[b]] : internalConditionals[child[b]];
+                double[] childOutside = childNeeded ? outsideConditionals[child[b]] : null;
+
+                if (hostshiftModel[b] == TraversalPlan.NO_MODEL) {
+                    addBranchGradient(branchModel[b], up, low, branchLength[b], childOutside);
+                } else {
+                    int m0 = hostshiftModel[b];
+                    int m1 = branchModel[b];
+                    double t0 = branchLength[b] * Constants.CLADE_BRANCH_SPLIT;
+                    double t1 = branchLength[b] * (1 - Constants.CLADE_BRANCH_SPLIT);
+
+                    if (gradientModels[m0]) {
+                        // The conditional at the point on the branch where the model switches
+                        modelGradients[m1].multiply(t1, toModelOrder(m1, low, modelLow), modelOut);
+                        fromModelOrder(m1, modelOut, lowMiddle);
+                    }
+
+                    addBranchGradient(m0, up, lowMiddle, t0, upMiddle);
+                    addBranchGradient(m1, upMiddle, low, t1, childOutside);
                 }
-                branchProb += lowerConditional[j] * probMatrix[i * GeneticCode.CODON_STATES + j];
             }
-            conditionals[i] *= branchProb;
         }
-    }
 
-    private void updateIntraCladeConditionals(double[] lowerConditional, double[] conditionals, double[] probMatrix) {
-        for (int i : siteCodons) {
-            double branchProb = 0.0;
-            for (int j : siteCodons) {
-                branchProb += lowerConditional[j] * probMatrix[i * GeneticCode.CODON_STATES + j];
+        for (int m = 0; m < models.length; m++) {
+            if (gradientModels[m]) modelGradients[m].addFitnessGradient(fitnessGradients[m]);
+        }
+        if (gradientModels[0]) models[0].addFrequencyGradient(internalConditionals[plan.root], fitnessGradients[0]);
+
+        // The derivatives of L, in the order of the parameters, and then of log(L)
+        int offset = 0;
+        for (Parameter p : parameters) {
+            if (p.getClass() == Fitness.class) {
+                int len = ((double[]) p.get()).length;
+                for (int m = 0; m < models.length; m++) {
+                    if (models[m].getFitness() != p || !gradientModels[m]) continue;
+                    // The first fitness is fixed, so isn't a parameter
+                    for (int k = 1; k < len; k++) gradient[offset + k - 1] += fitnessGradients[m][k] / rootLikelihood;
+                }
+                offset = offset + len - 1;
             }
-            conditionals[i] *= branchProb;
+        }
+    }
+
+    /**
+     * Adds the gradient of a branch (or part of a hostshift branch) using a single model. Vectors are in the root
+     * codon order. If upOut is not null, it's filled with up' P(t). If the model isn't in gradientModels, only upOut
+     * is calculated (and low isn't used).
+     */
+    private void addBranchGradient(int model, double[] up, double[] low, double t, double[] upOut) {
+        if (gradientModels[model]) {
+            modelGradients[model].addBranch(toModelOrder(model, up, modelUp), toModelOrder(model, low, modelLow), t,
+                    upOut == null ? null : modelOut);
+        } else if (upOut != null) {
+            modelGradients[model].propagate(toModelOrder(model, up, modelUp), t, modelOut);
+        }
+        if (upOut != null) fromModelOrder(model, modelOut, upOut);
+    }
+
+    /**
+     * Whether the branch, or either part of a hostshift branch, uses a model in gradientModels
+     */
+    private boolean isGradientBranch(int b) {
+        return gradientModels[plan.branchModel[b]]
+                || (plan.hostshiftModel[b] != TraversalPlan.NO_MODEL && gradientModels[plan.hostshiftModel[b]]);
+    }
+
+    private double[] toModelOrder(int model, double[] v, double[] buffer) {
+        int[] order = cladeCodonOrders[model];
+        if (order == null) return v;
+        for (int i = 0; i < matrixSize; i++) buffer[i] = v[order[i]];
+        return buffer;
+    }
+
+    private void fromModelOrder(int model, double[] v, double[] out) {
+        int[] order = cladeCodonOrders[model];
+        if (order == null) {
+            System.arraycopy(v, 0, out, 0, matrixSize);
+        } else {
+            for (int i = 0; i < matrixSize; i++) out[order[i]] = v[i];
         }
     }
 
@@ -215,30 +563,58 @@ public class LikelihoodCalculator {
 
         for (Parameter p : parameters) {
             if (p.getClass() == Fitness.class) {
-                int len = ((double[]) p.get()).length; // number of fitness coefficient parameters
-                double[] tmp = Doubles.concat(new double[]{Constants.FITNESS_FIXED_FOR_RELATIVE}, Arrays.copyOfRange(params, offset, offset + len - 1));
-                p.set(tmp);
+                // Update the fitness coefficients in place; the first is fixed and the rest come from params
+                double[] fitness = (double[]) p.get();
+                int len = fitness.length; // number of fitness coefficient parameters
+                fitness[0] = Constants.FITNESS_FIXED_FOR_RELATIVE;
+                System.arraycopy(params, offset, fitness, 1, len - 1);
                 offset = offset + len - 1;
             }
         }
 
-        // We've updated the parameters. Notify every clade model to create new model.
-        for (String key : cladeModels.keySet()) {
-            cladeModels.get(key).updateModel();
+        // We've updated the parameters. Notify each clade model whose fitness has changed to create new model.
+        for (int m = 0; m < models.length; m++) {
+            double[] fitness = models[m].getFitness().get();
+            if (modelFitness[m] == null || !Arrays.equals(fitness, modelFitness[m])) {
+                models[m].updateModel();
+                modelFitness[m] = fitness.clone();
+                modelChanged[m] = true;
+            }
         }
     }
 
     public void setParameters(Parameter... parameters) {
-        this.parameters = Arrays.asList(parameters);
+        this.parameters = parameters;
     }
 
     public void addCladeModel(String cladeName, TDGCodonModel cladeModel) {
+        cladeNames.add(cladeName);
+        models = Arrays.copyOf(models, models.length + 1);
+        models[models.length - 1] = cladeModel;
+        cladeCodonOrders = Arrays.copyOf(cladeCodonOrders, models.length);
+        modelFitness = Arrays.copyOf(modelFitness, models.length);
+        modelChanged = Arrays.copyOf(modelChanged, models.length);
+        modelsAssigned = false;
+
         // If this is the first clade we're adding, it becomes the default, the "root" model
-        if (cladeModels.isEmpty()) {
-            ROOT_MODEL_NAME = cladeName;
+        if (models.length == 1) {
+            siteCodons = cladeModel.getSiteCodons();
+            matrixSize = siteCodons.length;
+            probMatrix = new double[matrixSize * matrixSize];
+            probMatrix0 = new double[matrixSize * matrixSize];
+            probMatrix1 = new double[matrixSize * matrixSize];
+            kernel = ProbabilityMatrixKernel.forSize(matrixSize);
+            hostshiftConditional = new double[matrixSize];
+            fillTipConditionals();
+        } else {
+            // Every clade model covers the same codons, but maybe not in the same order
+            int[] cladeCodons = cladeModel.getSiteCodons();
+            if (!Arrays.equals(cladeCodons, siteCodons)) {
+                int[] order = new int[matrixSize];
+                for (int i = 0; i < matrixSize; i++) order[i] = Ints.indexOf(siteCodons, cladeCodons[i]);
+                cladeCodonOrders[models.length - 1] = order;
+            }
         }
-        cladeModels.put(cladeName, cladeModel);
-        siteCodons = cladeModels.get(ROOT_MODEL_NAME).getSiteCodons();
     }
 
     public MinimisationParameters getMinimisationParameters() {
@@ -0,0 +1,105 @@
+package tdg.model;
+
+import tdg.Constants;
+
+import java.util.Arrays;
+
+/**
+ * A bounded store of transition probability matrices, P(t), for a single TDGCodonModel keyed by branch length. The
+ * matrices are held in the model's compact (matrixSize x matrixSize) codon ordering.
+ * <p/>
+ * Keys are looked up in an open-addressed hash table over the bits of the branch length, so lookup neither boxes
+ * the key nor allocates. Matrix buffers are allocated the first time a slot is used and then reused after every
+ * clear(). Once the store holds its maximum number of entries, new branch lengths are simply not cached (until the
+ * next clear()).
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see TDGCodonModel#getProbabilityMatrix(double[], double)
+ */
+class ProbabilityMatrixCache {
+    private static final int EMPTY = -1;
+
+    private final int matrixLength;
+    private final int capacity;
+    private final int[] table; // hash slot -> entry index
+    private final long[] keys; // entry index -> branch length bits
+    private final double[][] matrices; // entry index -> P(t)
+    private int size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    ProbabilityMatrixCache(int matrixSize) {
+        this.matrixLength = matrixSize * matrixSize;
+
+        // Bound the number of entries by both count and memory (big matrices get fewer entries)
+        this.capacity = Math.max(1, Math.min(Constants.PROBABILITY_MATRIX_CACHE_SIZE,
+                Constants.PROBABILITY_MATRIX_CACHE_DOUBLES / matrixLength));
+
+        // Table is a power of two, at least twice the capacity, to keep probe sequences short
+        this.table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.keys = new long[capacity];
+        this.matrices = new double[capacity][];
+
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * @return the cached matrix for this branch length, or null if it has not been stored
+     */
+    double[] get(double branchLength) {
+        long key = Double.doubleToLongBits(branchLength);
+        int mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[table[slot]] == key) {
+                hits++;
+                return matrices[table[slot]];
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Reserves an entry for this branch length. The caller must fill the returned buffer with P(t).
+     *
+     * @return a matrix buffer to be filled, or null if the store is full
+     */
+    double[] put(double branchLength) {
+        if (size == capacity) return null;
+
+        long key = Double.doubleToLongBits(branchLength);
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+
+        if (matrices[size] == null) matrices[size] = new double[matrixLength];
+
+        keys[size] = key;
+        table[slot] = size;
+        return matrices[size++];
+    }
+
+    /**
+     * Forget all stored matrices (e.g. the model parameters have changed). Buffers are kept for reuse.
+     */
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(table, EMPTY);
+            size = 0;
+        }
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    private static int hash(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,183 @@
+package tdg.model;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates, for one TDGCodonModel, the derivative of the likelihood with respect to the model's rate matrix, using
+ * the model's eigen decomposition A = mu * Q = U Lambda U^-1.
+ * <p/>
+ * The likelihood is linear in the P(t) of each branch: L = up' P(t) low, where low is the conditional below the branch
+ * and up is everything above it (the "outside" vector from a pre-order pass). The derivative of P(t) = U exp(Lambda t)
+ * U^-1 in direction dA is U [(U^-1 dA U) o F(t)] U^-1, where
+ * <p/>
+ * F_ab = (exp(lambda_a t) - exp(lambda_b t)) / (lambda_a - lambda_b), or t exp(lambda_a t) if lambda_a == lambda_b
+ * <p/>
+ * so dL = sum_ab M_ab (U^-1 dA U)_ab with M_ab = a_a F_ab b_b, a = U' up and b = U^-1 low. M is summed over every
+ * branch that uses the model, then dL = sum_ij N_ij dA_ij with N = U^-T M U', and TDGCodonModel turns that into the
+ * derivative for each fitness coefficient.
+ * <p/>
+ * All vectors are in the model's own codon order. Only valid until the model is next updated.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see LikelihoodCalculator#function(double[], double[])
+ */
+class ProbabilityMatrixGradient {
+    // Below this |(lambda_a - lambda_b) t|, use a series for F_ab rather than the difference of exponentials
+    private static final double SERIES_THRESHOLD = 1e-3;
+
+    private final TDGCodonModel model;
+    private final int n;
+    private final double[] M;
+    private final double[] N;
+    private final double[] invLambdaDiff;
+    private final double[] a;
+    private final double[] b;
+    private final double[] expLt;
+
+    ProbabilityMatrixGradient(TDGCodonModel model) {
+        this.model = model;
+        this.n = model.getSiteCodons().length;
+        this.M = new double[n * n];
+        this.N = new double[n * n];
+        this.invLambdaDiff = new double[n * n];
+        this.a = new double[n];
+        this.b = new double[n];
+        this.expLt = new double[n];
+    }
+
+    /**
+     * Start a new gradient for the model's current parameters
+     */
+    void reset() {
+        Arrays.fill(M, 0.0);
+
+        double[] lambda = model.getEigenvalues();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double d = lambda[i] - lambda[j];
+                invLambdaDiff[i * n + j] = d == 0 ? 0 : 1 / d;
+            }
+        }
+    }
+
+    /**
+     * Adds the contribution of a branch of length t. If upOut is not null, it is filled with up' P(t), i.e. the up
+     * vector for the node below the branch. upOut must not be the same array as up.
+     */
+    void addBranch(double[] up, double[] low, double t, double[] upOut) {
+        final double[] UInv = model.getUInv();
+        final double[] lambda = model.getEigenvalues();
+
+        setUp(up, t);
+
+        // b = U^-1 low
+        for (int k = 0; k < n; k++) {
+            double sum = 0;
+            for (int j = 0; j < n; j++) sum += UInv[k * n + j] * low[j];
+            b[k] = sum;
+        }
+
+        for (int i = 0; i < n; i++) {
+            final double ai = a[i];
+            for (int j = 0; j < n; j++) {
+                double dt = (lambda[i] - lambda[j]) * t;
+                double F;
+                if (Math.abs(dt) < SERIES_THRESHOLD) {
+                    F = expLt[j] * t * (1 + dt / 2 + dt * dt / 6);
+                } else {
+                    F = (expLt[i] - expLt[j]) * invLambdaDiff[i * n + j];
+                }
+                M[i * n + j] += ai * F * b[j];
+            }
+        }
+
+        if (upOut != null) upOut(upOut);
+    }
+
+    /**
+     * Fills upOut with up' P(t) without adding to the gradient, for a branch on the way to those of the model (as
+     * calculated by addBranch(), so the up vectors below are the same either way). upOut must not be the same array as
+     * up.
+     */
+    void propagate(double[] up, double t, double[] upOut) {
+        setUp(up, t);
+        upOut(upOut);
+    }
+
+    /**
+     * a = U' up, and exp(Lambda t)
+     */
+    private void setUp(double[] up, double t) {
+        final double[] U = model.getU();
+        final double[] lambda = model.getEigenvalues();
+
+        Arrays.fill(a, 0.0);
+        for (int i = 0; i < n; i++) {
+            double upi = up[i];
+            if (upi == 0) continue;
+            for (int k = 0; k < n; k++) a[k] += U[i * n + k] * upi;
+        }
+
+        for (int k = 0; k < n; k++) expLt[k] = Math.exp(lambda[k] * t);
+    }
+
+    /**
+     * up' P(t) = (a o exp(Lambda t))' U^-1
+     */
+    private void upOut(double[] upOut) {
+        final double[] UInv = model.getUInv();
+
+        Arrays.fill(upOut, 0.0);
+        for (int k = 0; k < n; k++) {
+            double w = a[k] * expLt[k];
+            for (int j = 0; j < n; j++) upOut[j] += w * UInv[k * n + j];
+        }
+    }
+
+    /**
+     * out = P(t) v, calculated from the eigen decomposition
+     */
+    void multiply(double t, double[] v, double[] out) {
+        final double[] U = model.getU();
+        final double[] UInv = model.getUInv();
+        final double[] lambda = model.getEigenvalues();
+
+        for (int k = 0; k < n; k++) {
+            double sum = 0;
+            for (int j = 0; j < n; j++) sum += UInv[k * n + j] * v[j];
+            b[k] = sum * Math.exp(lambda[k] * t);
+        }
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            for (int k = 0; k < n; k++) sum += U[i * n + k] * b[k];
+            out[i] = sum;
+        }
+    }
+
+    /**
+     * Adds the derivative with respect to each fitness coefficient of the model (indexed as its fitness array) to
+     * gradient
+     */
+    void addFitnessGradient(double[] gradient) {
+        final double[] U = model.getU();
+        final double[] UInv = model.getUInv();
+
+        // N = U^-T M U'. First, M U' (held in a row at a time)...
+        Arrays.fill(N, 0.0);
+        for (int k = 0; k < n; k++) {
+            for (int j = 0; j < n; j++) {
+                double sum = 0;
+                for (int l = 0; l < n; l++) sum += M[k * n + l] * U[j * n + l];
+                b[j] = sum;
+            }
+            // ...then accumulate row k of U^-1, transposed, times it
+            for (int i = 0; i < n; i++) {
+                double uInv = UInv[k * n + i];
+                if (uInv == 0) continue;
+                for (int j = 0; j < n; j++) N[i * n + j] += uInv * b[j];
+            }
+        }
+
+        model.addRateMatrixGradient(N, gradient);
+    }
+}
@@ -0,0 +1,269 @@
+package tdg.model;
+
+import tdg.utils.GeneticCode;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Calculates the transition probability matrix P(t) = U exp(Lambda t) U^-1 for a TDGCodonModel, and scatters it
+ * into the 64 x 64 codon matrix.
+ * <p/>
+ * The sizes of the full model under the standard (61 sense codons) and vertebrate mitochondrial (60) genetic codes
+ * have their own kernels, where the matrix size is a compile-time constant so HotSpot can drop range checks and fully
+ * unroll. Every other size (i.e. with -useapprox) uses the generic kernel. All kernels add the terms of each element in
+ * the same order, so give identical results.
+ * <p/>
+ * If the JVM has the incubating Vector API (Java 16 or later, run with --add-modules jdk.incubator.vector), matrices of
+ * at least VECTOR_MIN_SIZE use VectorProbabilityMatrixKernel instead, which is built from src/vector and loaded by
+ * reflection, so this code still builds and runs without it. It adds the terms in a different order (a lane at a
+ * time), so results differ from the scalar kernels in the last few bits. Set -Dtdg.vector=false to use the scalar
+ * kernels anyway.
+ * <p/>
+ * A kernel holds scratch space, so each model must have its own - use forSize().
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see TDGCodonModel
+ */
+abstract class ProbabilityMatrixKernel {
+    // Smaller matrices don't fill enough vector lanes to be worth it
+    static final int VECTOR_MIN_SIZE = 8;
+
+    private static final Constructor<? extends ProbabilityMatrixKernel> vectorKernel = findVectorKernel();
+
+    /**
+     * @return a new kernel for a matrixSize x matrixSize model
+     */
+    static ProbabilityMatrixKernel forSize(int matrixSize) {
+        if (vectorKernel != null && matrixSize >= VECTOR_MIN_SIZE) {
+            ProbabilityMatrixKernel kernel = vectorForSize(matrixSize);
+            if (kernel != null) return kernel;
+        }
+        return scalarForSize(matrixSize);
+    }
+
+    /**
+     * @return a new kernel for a matrixSize x matrixSize model, without the Vector API
+     */
+    static ProbabilityMatrixKernel scalarForSize(int matrixSize) {
+        switch (matrixSize) {
+            case Kernel61.N:
+                return new Kernel61();
+            case Kernel60.N:
+                return new Kernel60();
+            default:
+                return new GenericKernel(matrixSize);
+        }
+    }
+
+    /**
+     * @return a new Vector API kernel for a matrixSize x matrixSize model, or null if the Vector API isn't available
+     */
+    static ProbabilityMatrixKernel vectorForSize(int matrixSize) {
+        if (vectorKernel == null) return null;
+        try {
+            return vectorKernel.newInstance(matrixSize);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Constructor<? extends ProbabilityMatrixKernel> findVectorKernel() {
+        if (!Boolean.parseBoolean(System.getProperty("tdg.vector", "true"))) return null;
+        try {
+            Class.forName("jdk.incubator.vector.DoubleVector");
+            Constructor<? extends ProbabilityMatrixKernel> c = Class.forName("tdg.model.VectorProbabilityMatrixKernel")
+                    .asSubclass(ProbabilityMatrixKernel.class).getDeclaredConstructor(int.class);
+            // Fails now, rather than in the middle of a calculation, if the kernel can't be used on this JVM
+            c.newInstance(VECTOR_MIN_SIZE);
+            return c;
+        } catch (Throwable t) { // ClassNotFoundException, or a LinkageError without the jdk.incubator.vector module
+            return null;
+        }
+    }
+
+    /**
+     * Fills out (n) with M v, where M is n x n, row-major, i.e. out[i] = sum_j M[i][j] v[j], the terms added in
+     * order of j
+     */
+    void multiply(double[] M, double[] v, double[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            double sum = 0.0;
+            final int row = i * n;
+            for (int j = 0; j < n; j++) sum += v[j] * M[row + j];
+            out[i] = sum;
+        }
+    }
+
+    /**
+     * Fills Pt (matrixSize x matrixSize, row-major) with U exp(Lambda t) U^-1, where lambda is already scaled by mu.
+     * Negative entries (rounding error) are set to zero.
+     */
+    abstract void probabilityMatrix(double[] Pt, double branchLength, double[] lambda, double[] U, double[] UInv);
+
+    /**
+     * Copies the compact matrix Pt into the 64 x 64 matrix, at the rows and columns of the given codons
+     */
+    abstract void scatter(double[] Pt, int[] siteCodons, double[] matrix);
+
+    /**
+     * Any matrix size. The product is blocked over 4 rows of U exp(Lambda t), so each row of U^-1 is loaded once per
+     * block rather than once per row.
+     */
+    static final class GenericKernel extends ProbabilityMatrixKernel {
+        private final int n;
+        private final double[] UExpLt; // U exp(Lambda t)
+
+        GenericKernel(int matrixSize) {
+            this.n = matrixSize;
+            this.UExpLt = new double[n * n];
+        }
+
+        @Override
+        void probabilityMatrix(double[] Pt, double branchLength, double[] lambda, double[] U, double[] UInv) {
+            final int n = this.n;
+            final double[] A = UExpLt;
+
+            for (int k = 0; k < n; k++) {
+                double expLt = Math.exp(branchLength * lambda[k]);
+                for (int i = 0; i < n; i++) A[i * n + k] = expLt * U[i * n + k];
+            }
+
+            int i = 0;
+            for (; i + 3 < n; i += 4) {
+                final int r0 = i * n, r1 = r0 + n, r2 = r1 + n, r3 = r2 + n;
+                for (int j = 0; j < n; j++) Pt[r0 + j] = Pt[r1 + j] = Pt[r2 + j] = Pt[r3 + j] = 0;
+
+                for (int k = 0; k < n; k++) {
+                    final double a0 = A[r0 + k], a1 = A[r1 + k], a2 = A[r2 + k], a3 = A[r3 + k];
+                    final int rk = k * n;
+                    for (int j = 0; j < n; j++) {
+                        final double b = UInv[rk + j];
+                        Pt[r0 + j] += a0 * b;
+                        Pt[r1 + j] += a1 * b;
+                        Pt[r2 + j] += a2 * b;
+                        Pt[r3 + j] += a3 * b;
+                    }
+                }
+            }
+
+            for (; i < n; i++) {
+                final int r0 = i * n;
+                for (int j = 0; j < n; j++) Pt[r0 + j] = 0;
+
+                for (int k = 0; k < n; k++) {
+                    final double a0 = A[r0 + k];
+                    final int rk = k * n;
+                    for (int j = 0; j < n; j++) Pt[r0 + j] += a0 * UInv[rk + j];
+                }
+            }
+
+            for (int j = 0; j < n * n; j++) if (Pt[j] < 0) Pt[j] = 0;
+        }
+
+        @Override
+        void scatter(double[] Pt, int[] siteCodons, double[] matrix) {
+            for (int i = 0; i < n; i++) {
+                final int row = siteCodons[i] * GeneticCode.CODON_STATES;
+                for (int j = 0; j < n; j++) matrix[row + siteCodons[j]] = Pt[i * n + j];
+            }
+        }
+    }
+
+    /**
+     * The full model for the standard genetic code. 60 rows in blocks of 4, then the last row.
+     */
+    static final class Kernel61 extends ProbabilityMatrixKernel {
+        static final int N = 61;
+        private final double[] UExpLt = new double[N * N];
+
+        @Override
+        void probabilityMatrix(double[] Pt, double branchLength, double[] lambda, double[] U, double[] UInv) {
+            final double[] A = UExpLt;
+
+            for (int k = 0; k < N; k++) {
+                double expLt = Math.exp(branchLength * lambda[k]);
+                for (int i = 0; i < N; i++) A[i * N + k] = expLt * U[i * N + k];
+            }
+
+            for (int i = 0; i < N - 1; i += 4) {
+                final int r0 = i * N, r1 = r0 + N, r2 = r1 + N, r3 = r2 + N;
+                for (int j = 0; j < N; j++) Pt[r0 + j] = Pt[r1 + j] = Pt[r2 + j] = Pt[r3 + j] = 0;
+
+                for (int k = 0; k < N; k++) {
+                    final double a0 = A[r0 + k], a1 = A[r1 + k], a2 = A[r2 + k], a3 = A[r3 + k];
+                    final int rk = k * N;
+                    for (int j = 0; j < N; j++) {
+                        final double b = UInv[rk + j];
+                        Pt[r0 + j] += a0 * b;
+                        Pt[r1 + j] += a1 * b;
+                        Pt[r2 + j] += a2 * b;
+                        Pt[r3 + j] += a3 * b;
+                    }
+                }
+            }
+
+            final int r0 = (N - 1) * N;
+            for (int j = 0; j < N; j++) Pt[r0 + j] = 0;
+            for (int k = 0; k < N; k++) {
+                final double a0 = A[r0 + k];
+                final int rk = k * N;
+                for (int j = 0; j < N; j++) Pt[r0 + j] += a0 * UInv[rk + j];
+            }
+
+            for (int j = 0; j < N * N; j++) if (Pt[j] < 0) Pt[j] = 0;
+        }
+
+        @Override
+        void scatter(double[] Pt, int[] siteCodons, double[] matrix) {
+            for (int i = 0; i < N; i++) {
+                final int row = siteCodons[i] * GeneticCode.CODON_STATES;
+                for (int j = 0; j < N; j++) matrix[row + siteCodons[j]] = Pt[i * N + j];
+            }
+        }
+    }
+
+    /**
+     * The full model for the vertebrate mitochondrial genetic code. 60 rows in blocks of 4.
+     */
+    static final class Kernel60 extends ProbabilityMatrixKernel {
+        static final int N = 60;
+        private final double[] UExpLt = new double[N * N];
+
+        @Override
+        void probabilityMatrix(double[] Pt, double branchLength, double[] lambda, double[] U, double[] UInv) {
+            final double[] A = UExpLt;
+
+            for (int k = 0; k < N; k++) {
+                double expLt = Math.exp(branchLength * lambda[k]);
+                for (int i = 0; i < N; i++) A[i * N + k] = expLt * U[i * N + k];
+            }
+
+            for (int i = 0; i < N; i += 4) {
+                final int r0 = i * N, r1 = r0 + N, r2 = r1 + N, r3 = r2 + N;
+                for (int j = 0; j < N; j++) Pt[r0 + j] = Pt[r1 + j] = Pt[r2 + j] = Pt[r3 + j] = 0;
+
+                for (int k = 0; k < N; k++) {
+                    final double a0 = A[r0 + k], a1 = A[r1 + k], a2 = A[r2 + k], a3 = A[r3 + k];
+                    final int rk = k * N;
+                    for (int j = 0; j < N; j++) {
+                        final double b = UInv[rk + j];
+                        Pt[r0 + j] += a0 * b;
+                        Pt[r1 + j] += a1 * b;
+                        Pt[r2 + j] += a2 * b;
+                        Pt[r3 + j] += a3 * b;
+                    }
+                }
+            }
+
+            for (int j = 0; j < N * N; j++) if (Pt[j] < 0) Pt[j] = 0;
+        }
+
+        @Override
+        void scatter(double[] Pt, int[] siteCodons, double[] matrix) {
+            for (int i = 0; i < N; i++) {
+                final int row = siteCodons[i] * GeneticCode.CODON_STATES;
+                for (int j = 0; j < N; j++) matrix[row + siteCodons[j]] = Pt[i * N + j];
+            }
+        }
+    }
+}
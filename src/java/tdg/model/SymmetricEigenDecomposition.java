@@ -0,0 +1,248 @@
+package tdg.model;
+
+/**
+ * Eigenvalue decomposition of a real symmetric matrix, A = V D V', working in place on preallocated buffers so that
+ * repeated decompositions of the same size don't allocate.
+ * <p/>
+ * The matrix is reduced to tridiagonal form by Householder transformations and the tridiagonal matrix is then
+ * diagonalised by the implicit QL method. These are tred2 and tql2 from EISPACK, by way of JAMA (and Colt's
+ * EigenvalueDecomposition, which this replaces for TDGCodonModel), operating on a row-major double[] holding the
+ * transpose of the eigenvector matrix. Eigenvalues are in ascending order.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see TDGCodonModel
+ */
+class SymmetricEigenDecomposition {
+    private static final double EPS = Math.pow(2.0, -52.0);
+
+    private final int n;
+    private final double[] d; // eigenvalues
+    private final double[] e; // off-diagonal of the tridiagonal matrix, then workspace
+
+    SymmetricEigenDecomposition(int n) {
+        this.n = n;
+        this.d = new double[n];
+        this.e = new double[n];
+    }
+
+    /**
+     * Decomposes the symmetric n x n matrix A, which is overwritten with the eigenvectors: row j of A becomes the
+     * eigenvector of the j-th eigenvalue (i.e. A holds V', not V). Only the lower triangle of A is read.
+     */
+    void decompose(double[] A) {
+        // We work on W = V', so that the inner loops of both stages run along rows. Start with the lower triangle of A
+        // in the upper triangle of W.
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < i; j++) {
+                double a = A[i * n + j];
+                A[i * n + j] = A[j * n + i];
+                A[j * n + i] = a;
+            }
+        }
+
+        tred2(A);
+        tql2(A);
+    }
+
+    /**
+     * @return the eigenvalues, in ascending order. This array belongs to the decomposition and is overwritten by the
+     * next call to decompose().
+     */
+    double[] getEigenvalues() {
+        return d;
+    }
+
+    /**
+     * Symmetric Householder reduction to tridiagonal form.
+     */
+    private void tred2(double[] W) {
+        for (int j = 0; j < n; j++) d[j] = W[j * n + n - 1];
+
+        for (int i = n - 1; i > 0; i--) {
+            // Scale to avoid under/overflow
+            double scale = 0.0;
+            double h = 0.0;
+            for (int k = 0; k < i; k++) scale = scale + Math.abs(d[k]);
+
+            if (scale == 0.0) {
+                e[i] = d[i - 1];
+                for (int j = 0; j < i; j++) {
+                    d[j] = W[j * n + i - 1];
+                    W[j * n + i] = 0.0;
+                    W[i * n + j] = 0.0;
+                }
+            } else {
+                // Generate Householder vector
+                for (int k = 0; k < i; k++) {
+                    d[k] /= scale;
+                    h += d[k] * d[k];
+                }
+                double f = d[i - 1];
+                double g = Math.sqrt(h);
+                if (f > 0) g = -g;
+                e[i] = scale * g;
+                h = h - f * g;
+                d[i - 1] = f - g;
+                for (int j = 0; j < i; j++) e[j] = 0.0;
+
+                // Apply similarity transformation to remaining columns
+                for (int j = 0; j < i; j++) {
+                    f = d[j];
+                    W[i * n + j] = f;
+                    g = e[j] + W[j * n + j] * f;
+                    for (int k = j + 1; k <= i - 1; k++) {
+                        g += W[j * n + k] * d[k];
+                        e[k] += W[j * n + k] * f;
+                    }
+                    e[j] = g;
+                }
+                f = 0.0;
+                for (int j = 0; j < i; j++) {
+                    e[j] /= h;
+                    f += e[j] * d[j];
+                }
+                double hh = f / (h + h);
+                for (int j = 0; j < i; j++) e[j] -= hh * d[j];
+                for (int j = 0; j < i; j++) {
+                    f = d[j];
+                    g = e[j];
+                    for (int k = j; k <= i - 1; k++) W[j * n + k] -= (f * e[k] + g * d[k]);
+                    d[j] = W[j * n + i - 1];
+                    W[j * n + i] = 0.0;
+                }
+            }
+            d[i] = h;
+        }
+
+        // Accumulate transformations
+        for (int i = 0; i < n - 1; i++) {
+            W[i * n + n - 1] = W[i * n + i];
+            W[i * n + i] = 1.0;
+            double h = d[i + 1];
+            if (h != 0.0) {
+                for (int k = 0; k <= i; k++) d[k] = W[(i + 1) * n + k] / h;
+                for (int j = 0; j <= i; j++) {
+                    double g = 0.0;
+                    for (int k = 0; k <= i; k++) g += W[(i + 1) * n + k] * W[j * n + k];
+                    for (int k = 0; k <= i; k++) W[j * n + k] -= g * d[k];
+                }
+            }
+            for (int k = 0; k <= i; k++) W[(i + 1) * n + k] = 0.0;
+        }
+        for (int j = 0; j < n; j++) {
+            d[j] = W[j * n + n - 1];
+            W[j * n + n - 1] = 0.0;
+        }
+        W[(n - 1) * n + n - 1] = 1.0;
+        e[0] = 0.0;
+    }
+
+    /**
+     * Symmetric tridiagonal QL algorithm.
+     */
+    private void tql2(double[] W) {
+        for (int i = 1; i < n; i++) e[i - 1] = e[i];
+        e[n - 1] = 0.0;
+
+        double f = 0.0;
+        double tst1 = 0.0;
+
+        for (int l = 0; l < n; l++) {
+            // Find small subdiagonal element
+            tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+            int m = l;
+            while (m < n) {
+                if (Math.abs(e[m]) <= EPS * tst1) break;
+                m++;
+            }
+
+            // If m == l, d[l] is an eigenvalue, otherwise, iterate
+            if (m > l) {
+                do {
+                    // Compute implicit shift
+                    double g = d[l];
+                    double p = (d[l + 1] - g) / (2.0 * e[l]);
+                    double r = hypot(p, 1.0);
+                    if (p < 0) r = -r;
+                    d[l] = e[l] / (p + r);
+                    d[l + 1] = e[l] * (p + r);
+                    double dl1 = d[l + 1];
+                    double h = g - d[l];
+                    for (int i = l + 2; i < n; i++) d[i] -= h;
+                    f = f + h;
+
+                    // Implicit QL transformation
+                    p = d[m];
+                    double c = 1.0;
+                    double c2 = c;
+                    double c3 = c;
+                    double el1 = e[l + 1];
+                    double s = 0.0;
+                    double s2 = 0.0;
+                    for (int i = m - 1; i >= l; i--) {
+                        c3 = c2;
+                        c2 = c;
+                        s2 = s;
+                        g = c * e[i];
+                        h = c * p;
+                        r = hypot(p, e[i]);
+                        e[i + 1] = s * r;
+                        s = e[i] / r;
+                        c = p / r;
+                        p = c * d[i] - s * g;
+                        d[i + 1] = h + s * (c * g + s * d[i]);
+
+                        // Accumulate transformation
+                        for (int k = 0; k < n; k++) {
+                            h = W[(i + 1) * n + k];
+                            W[(i + 1) * n + k] = s * W[i * n + k] + c * h;
+                            W[i * n + k] = c * W[i * n + k] - s * h;
+                        }
+                    }
+                    p = -s * s2 * c3 * el1 * e[l] / dl1;
+                    e[l] = s * p;
+                    d[l] = c * p;
+
+                    // Check for convergence
+                } while (Math.abs(e[l]) > EPS * tst1);
+            }
+            d[l] = d[l] + f;
+            e[l] = 0.0;
+        }
+
+        // Sort eigenvalues and corresponding vectors
+        for (int i = 0; i < n - 1; i++) {
+            int k = i;
+            double p = d[i];
+            for (int j = i + 1; j < n; j++) {
+                if (d[j] < p) {
+                    k = j;
+                    p = d[j];
+                }
+            }
+            if (k != i) {
+                d[k] = d[i];
+                d[i] = p;
+                for (int j = 0; j < n; j++) {
+                    p = W[i * n + j];
+                    W[i * n + j] = W[k * n + j];
+                    W[k * n + j] = p;
+                }
+            }
+        }
+    }
+
+    /**
+     * sqrt(a^2 + b^2) without under/overflow
+     */
+    private static double hypot(double a, double b) {
+        if (Math.abs(a) > Math.abs(b)) {
+            double r = b / a;
+            return Math.abs(a) * Math.sqrt(1 + r * r);
+        } else if (b != 0) {
+            double r = a / b;
+            return Math.abs(b) * Math.sqrt(1 + r * r);
+        }
+        return 0.0;
+    }
+}
@@ -1,10 +1,5 @@
 package tdg.model;
 
-import cern.colt.matrix.DoubleFactory2D;
-import cern.colt.matrix.DoubleMatrix1D;
-import cern.colt.matrix.DoubleMatrix2D;
-import cern.colt.matrix.linalg.EigenvalueDecomposition;
-import cern.jet.math.Functions;
 import com.google.common.primitives.Ints;
 import tdg.Constants;
 import tdg.utils.GeneticCode;
@@ -40,15 +35,18 @@ public class TDGCodonModel {
     private final int[] aminoAcidsToFitness;
 
     private final double[] Q; // substitution matrix
-    private final DoubleMatrix2D B; // PI^0.5 * Q * PI^-0.5
+    private final double[] B; // PI^0.5 * Q * PI^-0.5, then its eigenvectors
+    private final SymmetricEigenDecomposition eigenDecomposition;
 
-    private DoubleMatrix1D lambda; // eigenvalue of B
+    private final double[] lambda; // eigenvalues of B, scaled by mu
     // For calculating the PT matrix
     private final double[] U;
     private final double[] UInv;
-    private final double[] PtTemp;
+    private final double[] PtCompact;
+    private final ProbabilityMatrixKernel kernel;
 
-    // Map<Double, double[]> probMatrixStore = Maps.newHashMap();
+    // P(t) matrices for branch lengths we've seen since the last updateModel()
+    private final ProbabilityMatrixCache probMatrixCache;
 
     public TDGCodonModel(TDGGlobals globals, Fitness fitness, List<Integer> aminoAcids) {
         this.globals = globals;
@@ -70,10 +68,14 @@ public class TDGCodonModel {
 
         this.codonPi = new double[matrixSize];
         this.Q = new double[matrixSize * matrixSize];
-        this.B = DoubleFactory2D.dense.make(matrixSize, matrixSize);
+        this.B = new double[matrixSize * matrixSize];
+        this.eigenDecomposition = new SymmetricEigenDecomposition(matrixSize);
         this.U = new double[matrixSize * matrixSize];
         this.UInv = new double[matrixSize * matrixSize];
-        this.PtTemp = new double[matrixSize * matrixSize];
+        this.lambda = new double[matrixSize];
+        this.PtCompact = new double[matrixSize * matrixSize];
+        this.probMatrixCache = new ProbabilityMatrixCache(matrixSize);
+        this.kernel = ProbabilityMatrixKernel.forSize(matrixSize);
     }
 
     public void updateModel() {
@@ -81,7 +83,7 @@ public class TDGCodonModel {
         makeQ();
         makeB();
         doEigenValueDecomposition();
-        // probMatrixStore.clear();
+        probMatrixCache.clear();
     }
 
     /**
@@ -155,10 +157,65 @@ public class TDGCodonModel {
         return Sij / -Math.expm1(-Sij);
     }
 
+    /**
+     * The derivative of getRelativeFixationProbability(), h(S) = S / (1 - e^-S), with respect to S
+     */
+    private double getRelativeFixationProbabilityDerivative(double Sij) {
+        if (Sij < -700) return 0; // h(S) is (effectively) zero here, and e^-S overflows
+        if (Sij > 1e3) return 1;
+        if (Math.abs(Sij) < 1e-4) return 0.5 + Sij / 6; // series, to avoid cancellation near S = 0
+        double em = -Math.expm1(-Sij);
+        return (em - Sij * Math.exp(-Sij)) / (em * em);
+    }
+
+    /**
+     * Adds the derivative of sum_IJ N_IJ * mu * Q_IJ with respect to each fitness coefficient to gradient (indexed as
+     * the fitness array). Q_II = -sum_J Q_IJ, and only non-synonymous rates depend on fitness.
+     *
+     * @see ProbabilityMatrixGradient
+     */
+    void addRateMatrixGradient(double[] N, double[] gradient) {
+        double[] f = fitness.get();
+        double nuMu = globals.getNu() * globals.getMu();
+
+        for (int i = 0; i < matrixSize; i++) {
+            int cI = siteCodons[i];
+            int fI = aminoAcidsToFitness[GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(cI)];
+            double nII = N[i * matrixSize + i];
+
+            for (int j = 0; j < matrixSize; j++) {
+                int cJ = siteCodons[j];
+                int fJ = aminoAcidsToFitness[GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(cJ)];
+                if (fI == fJ) continue;
+
+                double w = nuMu * globals.getNeutralMutationRate(cI, cJ)
+                        * getRelativeFixationProbabilityDerivative(f[fJ] - f[fI])
+                        * (N[i * matrixSize + j] - nII);
+                gradient[fJ] += w;
+                gradient[fI] -= w;
+            }
+        }
+    }
+
+    /**
+     * Adds the derivative of sum_I pi_I * w_I with respect to each fitness coefficient to gradient (indexed as the
+     * fitness array). w is in the same order as getSiteCodons().
+     */
+    void addFrequencyGradient(double[] w, double[] gradient) {
+        double total = 0;
+        for (int i = 0; i < matrixSize; i++) total += codonPi[i] * w[i];
+
+        // d pi_I / d F_k = pi_I * ([F_I is F_k] - sum of pi_J with F_J is F_k)
+        for (int i = 0; i < matrixSize; i++) {
+            int fI = aminoAcidsToFitness[GeneticCode.getInstance().getAminoAcidIndexFromCodonIndex(siteCodons[i])];
+            gradient[fI] += codonPi[i] * (w[i] - total);
+        }
+    }
+
     private void makeB() {
         for (int i = 0; i < matrixSize; i++) {
             for (int j = 0; j < matrixSize; j++) {
-                B.setQuick(i, j, Q[i * matrixSize + j] * Math.sqrt(codonPi[i]) / Math.sqrt(codonPi[j]));
+                B[i * matrixSize + j] = Q[i * matrixSize + j] * Math.sqrt(codonPi[i]) / Math.sqrt(codonPi[j]);
             }
         }
     }
@@ -193,20 +250,20 @@ public class TDGCodonModel {
      * \f]
      */
     private void doEigenValueDecomposition() {
-        EigenvalueDecomposition evdB = new EigenvalueDecomposition(B);
+        // B is symmetric by construction, and is replaced by its eigenvectors, R', one per row
+        eigenDecomposition.decompose(B);
+        final double[] RT = B;
 
-        lambda = DoubleFactory2D.dense.diagonal(evdB.getD());
+        double[] d = eigenDecomposition.getEigenvalues();
         // we scale branch length by global parameter mu here so we only have do it once
-        lambda.assign(Functions.mult(globals.getMu()));
-
-        DoubleMatrix2D R = evdB.getV();
+        for (int i = 0; i < matrixSize; i++) lambda[i] = d[i] * globals.getMu();
 
         for (int i = 0; i < matrixSize; i++) {
             double piSqrt = Math.sqrt(codonPi[i]);
             double piInvSqrt = 1 / piSqrt;
             for (int j = 0; j < matrixSize; j++) {
-                U[i * matrixSize + j] = piInvSqrt * R.getQuick(i, j);
-                UInv[j * matrixSize + i] = piSqrt * R.getQuick(i, j); // inverse(R) == transpose(R)
+                U[i * matrixSize + j] = piInvSqrt * RT[j * matrixSize + i];
+                UInv[j * matrixSize + i] = piSqrt * RT[j * matrixSize + i]; // inverse(R) == transpose(R)
             }
         }
 
@@ -220,67 +277,50 @@ public class TDGCodonModel {
     }
 
 
+    /**
+     * Fills the given 64x64 matrix with the transition probabilities, P(t) = U exp(Lambda t) U^-1, for the codons at
+     * this site. Matrices are kept, keyed by branch length, until the next call to updateModel(), so repeated branch
+     * lengths (including the split halves of hostshift branches) only pay for the matrix product once.
+     */
     public void getProbabilityMatrix(final double[] matrix, final double branchLength) {
+        kernel.scatter(getCompactProbabilityMatrix(branchLength), siteCodons, matrix);
+    }
 
-        /*if (probMatrixStore.containsKey(branchLength)) {
-            double[] ref = probMatrixStore.get(branchLength);
-            for (int i = 0; i < matrix.length; i++) {
-                matrix[i] = ref[i];
-            }
-        } else {*/
-        //long start = CodeTimer.start();
-        // NOTE: If matrixSize were a final static int, then there would be some
-        // performance improvement. Java doesn't array bounds check
-        // in that case. See http://wikis.sun.com/display/HotSpotInternals/RangeCheckElimination
-        // MitoData, site 274, time in this method ~56secs down to ~50secs (54x54 codon matrix)
-        // More improvement using jdk1.7.0 ~58secs to ~42secs!!
-        for (int i = 0; i < matrixSize; i++) {
-            double temp = Math.exp(branchLength * lambda.getQuick(i));
-            for (int j = 0; j < matrixSize; j++) {
-                PtTemp[j * matrixSize + i] = temp * U[j * matrixSize + i];
-            }
+    /**
+     * The matrixSize x matrixSize transition probabilities, indexed in the same order as getSiteCodons(). The
+     * returned array belongs to this model and must not be modified; it is only valid until the next call to this
+     * method or updateModel().
+     */
+    double[] getCompactProbabilityMatrix(final double branchLength) {
+        double[] Pt = probMatrixCache.get(branchLength);
+
+        if (Pt == null) {
+            Pt = probMatrixCache.put(branchLength);
+            // The cache is full - calculate in our own buffer
+            if (Pt == null) Pt = PtCompact;
+            makeProbabilityMatrix(Pt, branchLength);
         }
 
+        return Pt;
+    }
 
-        //CodeTimer.store("getProbabilityMatrix_1", start);
+    private void makeProbabilityMatrix(final double[] Pt, final double branchLength) {
+        // The full model sizes (61 and 60 codons) have kernels with a compile-time matrix size, so no range checks
+        kernel.probabilityMatrix(Pt, branchLength, lambda, U, UInv);
+    }
 
-        //long start2 = CodeTimer.start();x
-        for (int j = 0; j < matrixSize; j++) {
-            for (int i = 0; i < matrixSize; i++) {
-                double temp = 0;
-                for (int k = 0; k < matrixSize; k++) {
-                    temp += PtTemp[i * matrixSize + k] * UInv[k * matrixSize + j];
-                }
-                if (temp < 0) temp = 0;
-                matrix[siteCodons[i] * GeneticCode.CODON_STATES + siteCodons[j]] = temp;
-            }
-        }
+    /**
+     * @return number of P(t) requests answered from the branch length cache
+     */
+    public long getProbabilityMatrixCacheHits() {
+        return probMatrixCache.getHits();
+    }
 
-/*
-            probMatrixStore.put(branchLength, Arrays.copyOf(matrix, GeneticCode.CODON_STATES * GeneticCode.CODON_STATES));
-
-            //CodeTimer.store("getProbabilityMatrix_2", start2);
-        }*/
-// */
-        /* This works, but would be horrible to have all these classes though...wouldn't it!?
-
-        Briefly, if we had a class for each size of matrix (from some lower-limit to 64),
-        each class having a compile-time static scale for matrix size, then the JVM will
-        eliminate range checks. As shown above, this could lead to a "substantial" (hmm..20s)
-        performance improvement
-
-        As class member:
-            MatrixMult matrixMultiplier;
-        In constructor:
-            try {
-                this.matrixMultiplier = (MatrixMult) Class.forName("tdg.model.MatrixMult" + matrixSize).newInstance();
-            } catch (Exception e) { e.printStackTrace(); }
-        Then here:
-            matrixMultiplier.getProbabilityMatrix(matrix, branchLength, lambda, U, UInv, siteCodons);
-
-        NOTE: this probably only needs to be a pure matrix multiplier by performing
-        the quicker lambda multiplication in this TDGCodonModel method
-        */
+    /**
+     * @return number of P(t) requests that had to be calculated
+     */
+    public long getProbabilityMatrixCacheMisses() {
+        return probMatrixCache.getMisses();
     }
 
     /**
@@ -294,6 +334,38 @@ public class TDGCodonModel {
         return fullF;
     }
 
+    /**
+     * @return equilibrium frequencies of the codons at this site, in the same order as getSiteCodons(). Not a copy.
+     */
+    double[] getCompactCodonFrequencies() {
+        return codonPi;
+    }
+
+    /**
+     * @return eigenvalues of mu * Q. Not a copy.
+     */
+    double[] getEigenvalues() {
+        return lambda;
+    }
+
+    /**
+     * @return right eigenvectors of Q (matrixSize x matrixSize, row-major). Not a copy.
+     */
+    double[] getU() {
+        return U;
+    }
+
+    /**
+     * @return inverse of getU(). Not a copy.
+     */
+    double[] getUInv() {
+        return UInv;
+    }
+
+    Fitness getFitness() {
+        return fitness;
+    }
+
     public double[] getAminoAcidFrequencies() {
         double[] freqs = new double[GeneticCode.AMINO_ACID_STATES];
         double[] codonPis = getCodonFrequencies();
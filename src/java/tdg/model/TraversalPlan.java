@@ -0,0 +1,122 @@
+package tdg.model;
+
+import pal.tree.Node;
+import pal.tree.Tree;
+
+import java.util.List;
+
+/**
+ * A PAL tree flattened into int-indexed arrays for the pruning algorithm. Internal nodes are listed in post-order
+ * (every child before its parent) and each has a contiguous run of branches, one for each child. For every branch we
+ * store the child, the branch length and the clade model(s) to use, so LikelihoodCalculator's inner loop needs no
+ * tree walking, string handling or map lookups.
+ * <p/>
+ * Tips and internal nodes are identified by their PAL node number.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see LikelihoodCalculator
+ */
+class TraversalPlan {
+    static final int NO_MODEL = -1;
+
+    final int tipCount;
+    final int internalCount;
+    final int root;
+
+    final String[] tipNames;
+
+    // Internal nodes in post-order, and for the p-th of these the branches branchStart[p] to branchStart[p + 1] - 1
+    final int[] nodeOrder;
+    final int[] branchStart;
+
+    // For each branch
+    final int[] child;
+    final boolean[] childIsTip;
+    final double[] branchLength;
+    final int[] branchModel; // model of the child end of the branch
+    final int[] hostshiftModel; // model of the parent end if the branch is a hostshift, otherwise NO_MODEL
+
+    // Clade names (i.e. label prefix) of the node at each end of the branch, kept to assign models later
+    private final String[] childClade;
+    private final String[] parentClade;
+
+    TraversalPlan(Tree tree) {
+        tipCount = tree.getExternalNodeCount();
+        internalCount = tree.getInternalNodeCount();
+        root = tree.getRoot().getNumber();
+
+        tipNames = new String[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            Node n = tree.getExternalNode(i);
+            tipNames[n.getNumber()] = n.getIdentifier().getName();
+        }
+
+        int branches = 0;
+        for (int i = 0; i < internalCount; i++) branches += tree.getInternalNode(i).getChildCount();
+
+        nodeOrder = new int[internalCount];
+        branchStart = new int[internalCount + 1];
+        child = new int[branches];
+        childIsTip = new boolean[branches];
+        branchLength = new double[branches];
+        branchModel = new int[branches];
+        hostshiftModel = new int[branches];
+        childClade = new String[branches];
+        parentClade = new String[branches];
+
+        // PAL numbers internal nodes such that children come before their parents
+        int b = 0;
+        for (int i = 0; i < internalCount; i++) {
+            Node node = tree.getInternalNode(i);
+            nodeOrder[i] = node.getNumber();
+            branchStart[i] = b;
+
+            for (int j = 0; j < node.getChildCount(); j++, b++) {
+                Node c = node.getChild(j);
+                child[b] = c.getNumber();
+                childIsTip[b] = c.isLeaf();
+                branchLength[b] = c.getBranchLength();
+                childClade[b] = getCladeName(c);
+                parentClade[b] = getCladeName(node);
+            }
+        }
+        branchStart[internalCount] = b;
+    }
+
+    /**
+     * Sets the model index of every branch. With a single model, it's used everywhere. Otherwise, each branch uses
+     * the model of the clade of its child, except where the clade changes between parent and child (a hostshift): then
+     * the parent's model is used for the upper part of the branch.
+     *
+     * @param cladeNames the clade names, in model index order
+     */
+    void assignModels(List<String> cladeNames) {
+        for (int b = 0; b < child.length; b++) {
+            if (cladeNames.size() == 1) { // homogeneous model
+                branchModel[b] = 0;
+                hostshiftModel[b] = NO_MODEL;
+            } else if (parentClade[b].length() == 0 // the root of the tree is a parent without a label
+                    || childClade[b].equals(parentClade[b])) { // or we're not switching to a different model
+                branchModel[b] = getModel(cladeNames, childClade[b]);
+                hostshiftModel[b] = NO_MODEL;
+            } else { // this is a hostshift!
+                branchModel[b] = getModel(cladeNames, childClade[b]);
+                hostshiftModel[b] = getModel(cladeNames, parentClade[b]);
+            }
+        }
+    }
+
+    private static int getModel(List<String> cladeNames, String clade) {
+        int model = cladeNames.indexOf(clade);
+        if (model == NO_MODEL) {
+            throw new RuntimeException("No model for clade '" + clade + "'.");
+        }
+        return model;
+    }
+
+    private static String getCladeName(Node n) {
+        String label = n.getIdentifier().getName();
+        if (label == null) return "";
+        return label.length() > 2 ? label.substring(0, 2) : label;
+    }
+}
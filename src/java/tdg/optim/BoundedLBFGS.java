@@ -0,0 +1,208 @@
+package tdg.optim;
+
+import org.apache.commons.math.optimization.RealPointValuePair;
+
+import java.util.Arrays;
+
+/**
+ * Limited-memory BFGS for maximising a function with a gradient, within box constraints on every parameter. This is
+ * the projected form of L-BFGS-B: variables at a bound whose gradient points out of the box are held fixed for the
+ * iteration, the quasi-Newton direction is found for the remaining (free) variables and the line search projects each
+ * trial point back into the box. Points outside the bounds are never evaluated.
+ * <p/>
+ * Converges when the largest element of the projected gradient, or the improvement in the function value from one
+ * iteration to the next, falls below its tolerance.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see DifferentiableFunction
+ */
+public class BoundedLBFGS {
+    private static final double ARMIJO = 1e-4;
+    private static final int MAX_LINE_SEARCH_STEPS = 30;
+
+    private final int memory;
+    private final double valueTolerance;
+    private final double gradientTolerance;
+    private int maxEvaluations = Integer.MAX_VALUE;
+
+    private int evaluations;
+    private int iterations;
+    private boolean reachedMaxEvaluations;
+
+    /**
+     * @param memory            the number of recent steps used to approximate the inverse Hessian
+     * @param valueTolerance    stop when an iteration improves the function value by less than this
+     * @param gradientTolerance stop when no element of the projected gradient is larger than this
+     */
+    public BoundedLBFGS(int memory, double valueTolerance, double gradientTolerance) {
+        this.memory = memory;
+        this.valueTolerance = valueTolerance;
+        this.gradientTolerance = gradientTolerance;
+    }
+
+    public void setMaxEvaluations(int maxEvaluations) {
+        this.maxEvaluations = maxEvaluations;
+    }
+
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return whether the last optimisation stopped because it ran out of function evaluations
+     */
+    public boolean hasReachedMaxEvaluations() {
+        return reachedMaxEvaluations;
+    }
+
+    /**
+     * Maximises the function with every parameter in [lower, upper], starting from the given point (moved inside the
+     * bounds if necessary).
+     *
+     * @return the best point found and its value
+     */
+    public RealPointValuePair maximise(DifferentiableFunction function, double[] start, double lower, double upper) {
+        final int n = start.length;
+        evaluations = 0;
+        iterations = 0;
+        reachedMaxEvaluations = false;
+
+        // We minimise -f(x)
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) x[i] = Math.min(upper, Math.max(lower, start[i]));
+        double[] g = new double[n];
+        double fx = -value(function, x, g);
+
+        if (n == 0 || Double.isNaN(fx) || Double.isInfinite(fx)) return new RealPointValuePair(x, -fx);
+
+        double[][] s = new double[memory][n];
+        double[][] y = new double[memory][n];
+        double[] rho = new double[memory];
+        double[] alpha = new double[memory];
+        int stored = 0;
+        int newest = -1;
+
+        double[] d = new double[n];
+        double[] xNew = new double[n];
+        double[] gNew = new double[n];
+        boolean[] fixed = new boolean[n];
+
+        while (evaluations < maxEvaluations) {
+            // Variables at a bound that the gradient would push further out are fixed
+            double projectedGradient = 0;
+            for (int i = 0; i < n; i++) {
+                fixed[i] = (x[i] <= lower && g[i] > 0) || (x[i] >= upper && g[i] < 0);
+                if (!fixed[i]) projectedGradient = Math.max(projectedGradient, Math.abs(g[i]));
+            }
+            if (projectedGradient < gradientTolerance) break;
+
+            // Quasi-Newton direction for the free variables (two-loop recursion)
+            for (int i = 0; i < n; i++) d[i] = fixed[i] ? 0 : g[i];
+            for (int k = 0, j = newest; k < stored; k++, j = (j + memory - 1) % memory) {
+                alpha[j] = rho[j] * dot(s[j], d);
+                for (int i = 0; i < n; i++) d[i] -= alpha[j] * y[j][i];
+            }
+            if (stored > 0) {
+                double gamma = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+                for (int i = 0; i < n; i++) d[i] *= gamma;
+            }
+            for (int k = 0, j = (newest + memory - stored + 1) % memory; k < stored; k++, j = (j + 1) % memory) {
+                double beta = rho[j] * dot(y[j], d);
+                for (int i = 0; i < n; i++) d[i] += s[j][i] * (alpha[j] - beta);
+            }
+            for (int i = 0; i < n; i++) d[i] = fixed[i] ? 0 : -d[i];
+
+            double slope = dot(g, d);
+            if (!(slope < 0)) {
+                // Not a descent direction, so forget the history and use steepest descent
+                stored = 0;
+                for (int i = 0; i < n; i++) d[i] = fixed[i] ? 0 : -g[i];
+                slope = dot(g, d);
+            }
+
+            // The first step is scaled so that no parameter moves by more than 1
+            double step = 1.0;
+            if (stored == 0) {
+                double dMax = 0;
+                for (double di : d) dMax = Math.max(dMax, Math.abs(di));
+                step = Math.min(1.0, 1.0 / dMax);
+            }
+
+            // Backtracking line search along the projected path, with the Armijo condition
+            double fNew = Double.NaN;
+            boolean accepted = false;
+            for (int k = 0; k < MAX_LINE_SEARCH_STEPS && evaluations < maxEvaluations; k++) {
+                double decrease = 0;
+                for (int i = 0; i < n; i++) {
+                    xNew[i] = Math.min(upper, Math.max(lower, x[i] + step * d[i]));
+                    decrease += g[i] * (xNew[i] - x[i]);
+                }
+                fNew = -value(function, xNew, gNew);
+
+                if (fNew <= fx + ARMIJO * decrease) {
+                    accepted = true;
+                    break;
+                }
+
+                if (Double.isNaN(fNew) || Double.isInfinite(fNew)) {
+                    step *= 0.1;
+                } else {
+                    // Minimum of the quadratic through f(x), its slope and f(x + step * d), kept in [0.1, 0.5] x step
+                    double q = -slope * step * step / (2 * (fNew - fx - slope * step));
+                    step = Math.max(0.1 * step, Math.min(0.5 * step, q));
+                }
+            }
+
+            if (!accepted) {
+                if (stored == 0) break; // can't improve even with steepest descent
+                stored = 0;
+                continue;
+            }
+
+            iterations++;
+
+            // Update the history with this step, if it keeps the approximate Hessian positive definite
+            newest = (newest + 1) % memory;
+            for (int i = 0; i < n; i++) {
+                s[newest][i] = xNew[i] - x[i];
+                y[newest][i] = gNew[i] - g[i];
+            }
+            double sy = dot(s[newest], y[newest]);
+            if (sy > 1e-10 * dot(y[newest], y[newest])) {
+                rho[newest] = 1 / sy;
+                stored = Math.min(stored + 1, memory);
+            } else {
+                // Step not kept. If the history was full, its oldest step has been overwritten.
+                newest = (newest + memory - 1) % memory;
+                stored = Math.min(stored, memory - 1);
+            }
+
+            double improvement = fx - fNew;
+            System.arraycopy(xNew, 0, x, 0, n);
+            System.arraycopy(gNew, 0, g, 0, n);
+            fx = fNew;
+
+            if (improvement < valueTolerance) break;
+        }
+
+        reachedMaxEvaluations = evaluations >= maxEvaluations;
+        return new RealPointValuePair(Arrays.copyOf(x, n), -fx);
+    }
+
+    private double value(DifferentiableFunction function, double[] x, double[] gradient) {
+        evaluations++;
+        double f = function.value(x, gradient);
+        for (int i = 0; i < gradient.length; i++) gradient[i] = -gradient[i];
+        return f;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+        return sum;
+    }
+}
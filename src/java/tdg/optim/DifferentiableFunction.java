@@ -0,0 +1,15 @@
+package tdg.optim;
+
+/**
+ * A function that can calculate its gradient along with its value, for gradient-based optimisers.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see BoundedLBFGS
+ */
+public interface DifferentiableFunction {
+    /**
+     * @param gradient filled with the derivative of the function with respect to each element of point
+     * @return the value of the function at point
+     */
+    public double value(double[] point, double[] gradient);
+}
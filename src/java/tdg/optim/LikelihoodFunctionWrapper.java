@@ -15,7 +15,7 @@ import tdg.model.LikelihoodCalculator;
  * @see LikelihoodCalculator
  */
 public class LikelihoodFunctionWrapper implements MultivariateRealFunction {
-    private static final double CONSTRAINT = Constants.FITNESS_BOUND + 1;
+    public static final double CONSTRAINT = Constants.FITNESS_BOUND + 1;
     private LikelihoodCalculator lc;
     // private Map<DoubleArrayKey, Double> cache = Maps.newHashMap();
 
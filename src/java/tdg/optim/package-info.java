@@ -1,5 +1,5 @@
 /**
- * Classes for Apache Commons-Math optimisation API.
+ * Classes for Apache Commons-Math optimisation API, and a bounded L-BFGS optimiser for functions with gradients.
  */
 
 package tdg.optim;
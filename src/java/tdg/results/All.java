@@ -23,10 +23,11 @@ public class All {
         FitnessExtractor fe = new FitnessExtractor();
         fe.extract(options.outputFile);
 
-        // Write the model parameter values given the fitnesses and global parameters
+        // Write the model parameter values given the fitnesses and global parameters (a binary results file can be
+        // read directly, without going through F.txt)
         ModelWriter mw = new ModelWriter(options,
                 new TDGGlobals(options.globals.tau, options.globals.kappa, options.globals.pi, options.globals.mu, options.globals.gamma),
-                Constants.F_FILENAME);
+                ResultsFileReader.isResultsFile(options.outputFile) ? options.outputFile : Constants.F_FILENAME);
         mw.run();
 
         // Use the model parameter values to create the distribution of selection coefficients
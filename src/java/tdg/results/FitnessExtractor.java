@@ -10,12 +10,15 @@ import tdg.utils.GeneticCode;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
+import java.util.SortedMap;
 
 /**
- * Given the full output of the TdG12 swMutSel0 analysis, writes a file of fitnesses, ordered by site
+ * Given the full output of the TdG12 swMutSel0 analysis, writes a file of fitnesses, ordered by site. The output can
+ * either be the text log of tdg.Analyse or the binary results file it writes with the -results option.
  * <p/>
  * TODO: Handle heterogeneous fitness output (e.g. Fitness_C1, Fitness_C2 etc.) Currently, you have to do those by hand
  *
@@ -29,6 +32,44 @@ public class FitnessExtractor {
 
     public void extract(String resultsFile) throws Exception {
 
+        Map<Integer, double[]> allFitnesses = ResultsFileReader.isResultsFile(resultsFile)
+                ? readResultsFile(resultsFile)
+                : readOutputLog(resultsFile);
+
+        ArrayList<Integer> orderedKeys = Lists.newArrayList(allFitnesses.keySet());
+        Collections.sort(orderedKeys);
+
+        BufferedWriter writer = Files.newWriter(new File("F.txt"), Charsets.US_ASCII);
+
+        for (int site : orderedKeys) {
+            writer.write(Doubles.join(" ", allFitnesses.get(site)));
+            writer.write("\n");
+        }
+
+        writer.close();
+    }
+
+    /**
+     * @return the homogeneous model fitnesses for each site in a binary results file, ordered by site
+     */
+    public static SortedMap<Integer, double[]> readResultsFile(String resultsFile) throws IOException {
+        SortedMap<Integer, double[]> allFitnesses = Maps.newTreeMap();
+
+        ResultsFileReader reader = new ResultsFileReader(resultsFile);
+        SiteResult r;
+
+        while ((r = reader.next()) != null) {
+            if (r.isHomogeneous()) { // NOTE: Homogeneous fitness only!
+                allFitnesses.put(r.getSite(), r.getFitness());
+            }
+        }
+
+        reader.close();
+
+        return allFitnesses;
+    }
+
+    private Map<Integer, double[]> readOutputLog(String resultsFile) throws IOException {
         Map<Integer, double[]> allFitnesses = Maps.newHashMap();
 
         BufferedReader reader = Files.newReader(new File(resultsFile), Charsets.US_ASCII);
@@ -49,16 +90,6 @@ public class FitnessExtractor {
 
         reader.close();
 
-        ArrayList<Integer> orderedKeys = Lists.newArrayList(allFitnesses.keySet());
-        Collections.sort(orderedKeys);
-
-        BufferedWriter writer = Files.newWriter(new File("F.txt"), Charsets.US_ASCII);
-
-        for (int site : orderedKeys) {
-            writer.write(Doubles.join(" ", allFitnesses.get(site)));
-            writer.write("\n");
-        }
-
-        writer.close();
+        return allFitnesses;
     }
 }
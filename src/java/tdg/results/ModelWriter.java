@@ -22,8 +22,8 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * Takes a list of fitnesses (usually made by running FitnessExtractor) and swMutSel0 global parameters and
- * writes the following files:
+ * Takes a list of fitnesses (usually made by running FitnessExtractor, or read directly from a binary results file
+ * written by tdg.Analyse -results) and swMutSel0 global parameters and writes the following files:
  * <p/>
  * 1. Q0.txt - the neutral substitution rate matrix for each site
  * 2. QS.txt - the substitution rate matrix, with selection
@@ -79,7 +79,14 @@ public class ModelWriter {
         outQS = new FileWriter(new File(Constants.QS_FILENAME));
         outPiAA = new FileWriter(new File(Constants.PIAA_FILENAME));
 
-        Files.readLines(new File(this.path), Charsets.UTF_8, new FitnessProcessor());
+        if (ResultsFileReader.isResultsFile(this.path)) {
+            FitnessProcessor processor = new FitnessProcessor();
+            for (double[] fitnesses : FitnessExtractor.readResultsFile(this.path).values()) {
+                processor.processFitnesses(Doubles.asList(fitnesses));
+            }
+        } else {
+            Files.readLines(new File(this.path), Charsets.UTF_8, new FitnessProcessor());
+        }
 
         outS.close();
         outPiS.close();
@@ -90,9 +97,11 @@ public class ModelWriter {
     class FitnessProcessor implements LineProcessor<Object> {
         @Override
         public boolean processLine(String line) throws IOException {
+            processFitnesses(Lists.transform(Arrays.asList(line.split(" ")), Functions.stringToDouble()));
+            return true;
+        }
 
-            List<Double> fitnesses = Lists.transform(Arrays.asList(line.split(" ")), Functions.stringToDouble());
-
+        void processFitnesses(List<Double> fitnesses) throws IOException {
             TDGCodonModel tdg;
 
             if (o.approx.useapprox) {
@@ -120,8 +129,6 @@ public class ModelWriter {
             outPiS.write(String.format("%s\n", Doubles.join(" ", PiS)));
             outQS.write(String.format("%s\n", Doubles.join(" ", QS)));
             outPiAA.write(String.format("%s\n", Doubles.join(" ", tdg.getAminoAcidFrequencies())));
-
-            return true;
         }
 
         @Override
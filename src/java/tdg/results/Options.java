@@ -10,7 +10,7 @@ import tdg.cli.GlobalsOptions;
  * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
  */
 class Options {
-    @Parameter(names = "-o", description = "The results file from tdg.Analyse", required = true)
+    @Parameter(names = "-o", description = "The results file from tdg.Analyse (text output or binary -results file)", required = true)
     public String outputFile;
 
     @ParametersDelegate
@@ -0,0 +1,82 @@
+package tdg.results;
+
+import com.google.common.io.CountingInputStream;
+import tdg.utils.GeneticCode;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a binary results file written by ResultsFileWriter, one SiteResult at a time.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see ResultsFileWriter
+ */
+public class ResultsFileReader {
+    static final int MAGIC = 0x54444752; // "TDGR"
+    static final int VERSION = 1;
+
+    private final CountingInputStream counter;
+    private final DataInputStream in;
+    private long position;
+
+    public ResultsFileReader(String path) throws IOException {
+        this.counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(path)));
+        this.in = new DataInputStream(counter);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("'" + path + "' is not a tdg12 results file.");
+        }
+        this.position = counter.getCount();
+    }
+
+    /**
+     * @return true if the file at this path starts like a binary results file (rather than e.g. a text log)
+     */
+    public static boolean isResultsFile(String path) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(path));
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the next result in the file, or null if there are no more (including a partially written record)
+     */
+    public SiteResult next() throws IOException {
+        try {
+            int site = in.readInt();
+            String model = in.readUTF();
+            double lnL = in.readDouble();
+            double[] fitness = new double[GeneticCode.AMINO_ACID_STATES];
+            for (int i = 0; i < fitness.length; i++) fitness[i] = in.readDouble();
+            double[] pi = new double[GeneticCode.AMINO_ACID_STATES];
+            for (int i = 0; i < pi.length; i++) pi[i] = in.readDouble();
+            long time = in.readLong();
+            position = counter.getCount();
+            return new SiteResult(site, model, lnL, fitness, pi, time);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the offset in the file just after the last complete record read (or the header)
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,80 @@
+package tdg.results;
+
+import tdg.utils.GeneticCode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Writes site results to a binary results file, one record per SiteResult. The records of each site are flushed to
+ * disk together, as soon as the site is written, so the file can be read while the analysis is still running.
+ * <p/>
+ * The file starts with ResultsFileReader.MAGIC and ResultsFileReader.VERSION, followed by records of:
+ * <p/>
+ * int site, UTF model name, double lnL, 20 x double fitness, 20 x double pi, long time (ms)
+ * <p/>
+ * Records appear in the order sites finish, not site order. A resumed analysis appends to the existing file, so a site
+ * can appear more than once; readers should keep its last records.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see ResultsFileReader
+ */
+public class ResultsFileWriter implements SiteResultSink {
+    private final DataOutputStream out;
+
+    public ResultsFileWriter(String path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * @param append add to the records of an existing results file (e.g. resuming an analysis). Anything after the last
+     *               complete record is discarded first.
+     */
+    public ResultsFileWriter(String path, boolean append) throws IOException {
+        if (append && new File(path).length() > 0) {
+            truncateToLastRecord(path);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true)));
+        } else {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+            out.writeInt(ResultsFileReader.MAGIC);
+            out.writeInt(ResultsFileReader.VERSION);
+            out.flush();
+        }
+    }
+
+    private static void truncateToLastRecord(String path) throws IOException {
+        ResultsFileReader reader = new ResultsFileReader(path);
+        while (reader.next() != null) {
+            // skip to the end of the complete records
+        }
+        long end = reader.getPosition();
+        reader.close();
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(end);
+        file.close();
+    }
+
+    @Override
+    public synchronized void write(List<SiteResult> results) throws IOException {
+        for (SiteResult r : results) {
+            out.writeInt(r.getSite());
+            out.writeUTF(r.getModel());
+            out.writeDouble(r.getLnL());
+            for (int i = 0; i < GeneticCode.AMINO_ACID_STATES; i++) out.writeDouble(r.getFitness()[i]);
+            for (int i = 0; i < GeneticCode.AMINO_ACID_STATES; i++) out.writeDouble(r.getPi()[i]);
+            out.writeLong(r.getTime());
+        }
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
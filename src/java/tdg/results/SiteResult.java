@@ -0,0 +1,67 @@
+package tdg.results;
+
+/**
+ * The estimates for one model at one site, as produced by SiteAnalyser. A homogeneous analysis gives one result per
+ * site; a non-homogeneous analysis adds one result for each clade (all with the non-homogeneous lnL).
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see SiteResultSink
+ */
+public class SiteResult {
+    /**
+     * Model name used for the homogeneous model (the same name SiteAnalyser gives the clade model).
+     */
+    public static final String HOMOGENEOUS_MODEL = "ALL";
+
+    private final int site;
+    private final String model;
+    private final double lnL;
+    private final double[] fitness;
+    private final double[] pi;
+    private final long time;
+
+    /**
+     * @param site    the site (codon position, from 1)
+     * @param model   HOMOGENEOUS_MODEL, or the clade name for the non-homogeneous model
+     * @param lnL     the log-likelihood of the model
+     * @param fitness fitness of each of the 20 amino acids, in canonical order (-Infinity if not estimated)
+     * @param pi      equilibrium frequency of each of the 20 amino acids, in canonical order
+     * @param time    the time taken to analyse the whole site, in ms
+     */
+    public SiteResult(int site, String model, double lnL, double[] fitness, double[] pi, long time) {
+        this.site = site;
+        this.model = model;
+        this.lnL = lnL;
+        this.fitness = fitness;
+        this.pi = pi;
+        this.time = time;
+    }
+
+    public int getSite() {
+        return site;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public boolean isHomogeneous() {
+        return HOMOGENEOUS_MODEL.equals(model);
+    }
+
+    public double getLnL() {
+        return lnL;
+    }
+
+    public double[] getFitness() {
+        return fitness;
+    }
+
+    public double[] getPi() {
+        return pi;
+    }
+
+    public long getTime() {
+        return time;
+    }
+}
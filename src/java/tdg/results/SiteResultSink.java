@@ -0,0 +1,20 @@
+package tdg.results;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the results of each site as soon as SiteAnalyser has finished it. Implementations must be thread-safe,
+ * because sites are analysed concurrently.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see ResultsFileWriter
+ */
+public interface SiteResultSink {
+    /**
+     * @param results all the results for a single site
+     */
+    public void write(List<SiteResult> results) throws IOException;
+
+    public void close() throws IOException;
+}
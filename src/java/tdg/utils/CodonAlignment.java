@@ -0,0 +1,190 @@
+package tdg.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingInputStream;
+import pal.alignment.Alignment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A codon alignment held as one byte per taxon per site: the codon index (see GeneticCode), or -1 for a codon that
+ * isn't one of the 64 (e.g. gaps). Sites are stored one after the other, each with the taxa in the same order - when
+ * made for a tree, the order of the tree's tips (i.e. their PAL node numbers), so a site can be used by
+ * LikelihoodCalculator as it is.
+ * <p/>
+ * Alignments can be saved to a binary file, which is memory-mapped when read, so loading an alignment doesn't parse
+ * anything except the taxon names. The file has:
+ * <p/>
+ * int MAGIC, int VERSION, int taxon count, int site count, UTF name of each taxon, then the bytes of each site in turn
+ * <p/>
+ * Thread-safe.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see CodonAlignmentConverter
+ */
+public class CodonAlignment {
+    static final int MAGIC = 0x54444743; // "TDGC"
+    static final int VERSION = 1;
+
+    private final List<String> taxa;
+    private final int siteCount;
+    private final ByteBuffer codons;
+
+    private CodonAlignment(List<String> taxa, int siteCount, ByteBuffer codons) {
+        this.taxa = ImmutableList.copyOf(taxa);
+        this.siteCount = siteCount;
+        this.codons = codons;
+    }
+
+    /**
+     * Encodes the codons of a PAL (nucleotide) alignment.
+     *
+     * @param taxa the sequences to keep, in the order to keep them
+     */
+    public static CodonAlignment fromAlignment(Alignment alignment, List<String> taxa) {
+        int siteCount = alignment.getSiteCount() / 3;
+        ByteBuffer codons = ByteBuffer.allocate(taxa.size() * siteCount);
+
+        Map<String, Integer> sequences = Maps.newHashMap();
+        for (int i = 0; i < alignment.getSequenceCount(); i++) sequences.put(alignment.getIdentifier(i).getName(), i);
+
+        for (int t = 0; t < taxa.size(); t++) {
+            Integer sequence = sequences.get(taxa.get(t));
+            if (sequence == null) {
+                throw new RuntimeException("Alignment has no sequence for '" + taxa.get(t) + "'.");
+            }
+
+            int[] row = GeneticCode.getInstance().getCodonIndexesFromNucleotides(alignment.getAlignedSequenceString(sequence));
+            for (int site = 0; site < siteCount; site++) codons.put(site * taxa.size() + t, (byte) row[site]);
+        }
+
+        return new CodonAlignment(taxa, siteCount, codons);
+    }
+
+    /**
+     * Encodes the codons of a PAL (nucleotide) alignment, keeping every sequence in alignment order.
+     */
+    public static CodonAlignment fromAlignment(Alignment alignment) {
+        List<String> taxa = Lists.newArrayList();
+        for (int i = 0; i < alignment.getSequenceCount(); i++) taxa.add(alignment.getIdentifier(i).getName());
+        return fromAlignment(alignment, taxa);
+    }
+
+    /**
+     * Memory-maps a binary codon alignment file
+     */
+    public static CodonAlignment read(String path) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(path)));
+        DataInputStream in = new DataInputStream(counter);
+        List<String> taxa = Lists.newArrayList();
+        int siteCount;
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("'" + path + "' is not a tdg12 codon alignment file.");
+            }
+
+            int taxonCount = in.readInt();
+            siteCount = in.readInt();
+            for (int i = 0; i < taxonCount; i++) taxa.add(in.readUTF());
+        } finally {
+            in.close();
+        }
+
+        long start = counter.getCount();
+        long length = (long) taxa.size() * siteCount;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("'" + path + "' is too large to map (" + length + " codons).");
+        }
+
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (file.length() < start + length) {
+                throw new IOException("'" + path + "' is truncated.");
+            }
+            // The mapping stays valid after the file is closed
+            ByteBuffer codons = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+            return new CodonAlignment(taxa, siteCount, codons);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return true if the file at this path starts like a binary codon alignment file (rather than e.g. Phylip)
+     */
+    public static boolean isCodonAlignmentFile(String path) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(path));
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the alignment as a binary codon alignment file
+     */
+    public void write(String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(taxa.size());
+            out.writeInt(siteCount);
+            for (String taxon : taxa) out.writeUTF(taxon);
+
+            int length = taxa.size() * siteCount;
+            for (int i = 0; i < length; i++) out.writeByte(codons.get(i));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the taxa, in the order of the codons of each site
+     */
+    public List<String> getTaxa() {
+        return taxa;
+    }
+
+    public int getTaxonCount() {
+        return taxa.size();
+    }
+
+    /**
+     * @return number of codon sites
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * @param site the location of interest (from 1)
+     * @return the codon index of each taxon at the site, in getTaxa() order (-1 if unknown)
+     */
+    public int[] getSite(int site) {
+        int taxonCount = taxa.size();
+        int start = (site - 1) * taxonCount;
+        int[] states = new int[taxonCount];
+        for (int t = 0; t < taxonCount; t++) states[t] = codons.get(start + t);
+        return states;
+    }
+}
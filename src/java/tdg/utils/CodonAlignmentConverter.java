@@ -0,0 +1,28 @@
+package tdg.utils;
+
+import pal.tree.Tree;
+
+/**
+ * Converts a PHYLIP alignment into a binary codon alignment file for a tree, which tdg.Analyse, tdg.distributed.Slave
+ * and tdg.distributed.Master can read (with -s) much faster than the PHYLIP file. Usage:
+ * <p/>
+ * java -cp tdg12.jar tdg.utils.CodonAlignmentConverter tree_file alignment_file output_file
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see CodonAlignment
+ */
+public class CodonAlignmentConverter {
+    public static void main(String... args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("Usage: java -cp tdg12.jar tdg.utils.CodonAlignmentConverter <tree file> <alignment file> <output file>");
+            System.exit(0);
+        }
+
+        Tree tree = PhyloUtils.readTree(args[0]);
+        CodonAlignment alignment = CodonAlignment.fromAlignment(PhyloUtils.readAlignment(args[1]), PhyloUtils.getTipNames(tree));
+        alignment.write(args[2]);
+
+        System.out.printf("tdg.utils.CodonAlignmentConverter - Wrote %s sequences, each with %s codon sites, to %s\n",
+                alignment.getTaxonCount(), alignment.getSiteCount(), args[2]);
+    }
+}
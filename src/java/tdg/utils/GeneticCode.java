@@ -1,9 +1,9 @@
 package tdg.utils;
 
 import com.google.common.collect.Lists;
-import com.google.common.primitives.Chars;
 import com.google.common.primitives.Ints;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -57,6 +57,18 @@ public final class GeneticCode {
 
     private static final String[] CODONS_TLA = new String[CODON_STATES];
 
+    // Index of each nucleotide and amino acid character (-1 for anything else, e.g. gaps, ambiguity codes and lower case)
+    private static final byte[] NUCLEOTIDE_INDEX = new byte[128];
+    private static final byte[] AMINO_ACID_INDEX = new byte[128];
+
+    static {
+        Arrays.fill(NUCLEOTIDE_INDEX, (byte) UNKNOWN_STATE);
+        for (int i = 0; i < NUCLEOTIDES.length; i++) NUCLEOTIDE_INDEX[NUCLEOTIDES[i]] = (byte) i;
+
+        Arrays.fill(AMINO_ACID_INDEX, (byte) UNKNOWN_STATE);
+        for (int i = 0; i < AMINO_ACIDS.length; i++) AMINO_ACID_INDEX[AMINO_ACIDS[i]] = (byte) i;
+    }
+
     static {
         int i = 0;
         for (char[] c : CODONS_TLA_CHAR_ARRAY) {
@@ -80,7 +92,7 @@ public final class GeneticCode {
             if (code.charAt(i) == '*') {
                 CODONS_TO_AMINO_ACIDS[i] = UNKNOWN_STATE; // stop codon
             } else {
-                CODONS_TO_AMINO_ACIDS[i] = Chars.indexOf(AMINO_ACIDS, code.charAt(i)); // INSTANCE.getAminoAcidIndexByChar(code.charAt(i));
+                CODONS_TO_AMINO_ACIDS[i] = AMINO_ACID_INDEX[code.charAt(i)];
             }
         }
 
@@ -113,11 +125,11 @@ public final class GeneticCode {
     }
 
     public int getNucleotideIndexByChar(char c) {
-        return Chars.indexOf(NUCLEOTIDES, c);
+        return c < NUCLEOTIDE_INDEX.length ? NUCLEOTIDE_INDEX[c] : UNKNOWN_STATE;
     }
 
     public int getAminoAcidIndexByChar(char c) {
-        return Chars.indexOf(AMINO_ACIDS, c);
+        return c < AMINO_ACID_INDEX.length ? AMINO_ACID_INDEX[c] : UNKNOWN_STATE;
     }
 
     public char getNucleotideCharByIndex(int i) {
@@ -144,13 +156,33 @@ public final class GeneticCode {
     }
 
     public int getCodonIndexFromNucleotides(char[] nuc) {
-        String n = new String(nuc);
-        for (int i = 0; i < CODONS_TLA.length; i++) {
-            if (CODONS_TLA[i].equals(n)) {
-                return i;
-            }
+        if (nuc.length != 3) return UNKNOWN_STATE;
+        return getCodonIndex(nuc[0], nuc[1], nuc[2]);
+    }
+
+    /**
+     * @return the index of the codon with these nucleotides, or UNKNOWN_STATE if any of them isn't T, C, A or G
+     */
+    public int getCodonIndex(char n1, char n2, char n3) {
+        // Codons are in TCAG order at each position, so the index is the nucleotide indexes in base 4
+        int i1 = getNucleotideIndexByChar(n1);
+        int i2 = getNucleotideIndexByChar(n2);
+        int i3 = getNucleotideIndexByChar(n3);
+        if ((i1 | i2 | i3) < 0) return UNKNOWN_STATE;
+        return (i1 << 4) | (i2 << 2) | i3;
+    }
+
+    /**
+     * Encodes a whole nucleotide sequence (e.g. a row of an alignment) as codons. Any trailing partial codon is ignored.
+     *
+     * @return the codon index of each codon in the sequence, or UNKNOWN_STATE (as getCodonIndexFromNucleotides())
+     */
+    public int[] getCodonIndexesFromNucleotides(CharSequence nucleotides) {
+        int[] codons = new int[nucleotides.length() / 3];
+        for (int i = 0, j = 0; i < codons.length; i++, j += 3) {
+            codons[i] = getCodonIndex(nucleotides.charAt(j), nucleotides.charAt(j + 1), nucleotides.charAt(j + 2));
         }
-        return UNKNOWN_STATE;
+        return codons;
     }
 
     public int getAminoAcidIndexFromCodonIndex(int i) {
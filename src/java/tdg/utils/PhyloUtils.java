@@ -66,15 +66,73 @@ public class PhyloUtils {
             */
 
             states.put(alignment.getIdentifier(i).getName(),
-                    GeneticCode.getInstance().getCodonIndexFromNucleotides(
-                            new char[]{alignment.getData(i, nucleotideSite),
-                                    alignment.getData(i, nucleotideSite + 1),
-                                    alignment.getData(i, nucleotideSite + 2)}
-                    ));
+                    GeneticCode.getInstance().getCodonIndex(alignment.getData(i, nucleotideSite),
+                            alignment.getData(i, nucleotideSite + 1),
+                            alignment.getData(i, nucleotideSite + 2)));
         }
         return states;
     }
 
+    /**
+     * Reads a codon alignment for the given tree: either a binary codon alignment file (see CodonAlignmentConverter),
+     * which must have been made for this tree, or a PHYLIP alignment, which is encoded with the tree's tips in order.
+     * @param path path to the alignment file
+     * @param tree the tree the alignment will be analysed with
+     * @return a codon alignment with the taxa in the order of the tree's tips
+     */
+    public static CodonAlignment readCodonAlignment(String path, Tree tree) {
+        List<String> tipNames = getTipNames(tree);
+
+        if (!CodonAlignment.isCodonAlignmentFile(path)) {
+            return CodonAlignment.fromAlignment(readAlignment(path), tipNames);
+        }
+
+        CodonAlignment alignment = readCodonAlignment(path);
+        if (!alignment.getTaxa().equals(tipNames)) {
+            throw new RuntimeException("Codon alignment file '" + path + "' was not made for this tree. Convert the alignment again with this tree.");
+        }
+        return alignment;
+    }
+
+    /**
+     * Reads a codon alignment, either a binary codon alignment file or a PHYLIP alignment (keeping every sequence, in
+     * alignment order)
+     * @param path path to the alignment file
+     * @return a codon alignment
+     */
+    public static CodonAlignment readCodonAlignment(String path) {
+        try {
+            if (CodonAlignment.isCodonAlignmentFile(path)) return CodonAlignment.read(path);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return CodonAlignment.fromAlignment(readAlignment(path));
+    }
+
+    /**
+     * @param tree a PAL tree
+     * @return the names of the tips of the tree, ordered by their node number
+     */
+    public static List<String> getTipNames(Tree tree) {
+        String[] names = new String[tree.getExternalNodeCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[tree.getExternalNode(i).getNumber()] = tree.getExternalNode(i).getIdentifier().getName();
+        }
+        return Lists.newArrayList(names);
+    }
+
+    /**
+     * @param tree   a PAL tree
+     * @param states codon of each taxon, keyed by taxon name (e.g. from getCodonsAtSite())
+     * @return the codon of each tip of the tree, in the order of getTipNames()
+     */
+    public static int[] getTipStates(Tree tree, Map<String, Integer> states) {
+        List<String> tipNames = getTipNames(tree);
+        int[] tipStates = new int[tipNames.size()];
+        for (int i = 0; i < tipStates.length; i++) tipStates[i] = states.get(tipNames.get(i));
+        return tipStates;
+    }
+
     /**
      * Reads a Newick formatted tree
      * @param path path to the tree file
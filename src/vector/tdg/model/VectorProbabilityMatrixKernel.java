@@ -0,0 +1,124 @@
+package tdg.model;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import tdg.utils.GeneticCode;
+
+/**
+ * ProbabilityMatrixKernel using the incubating Vector API, for any matrix size. Loaded by reflection (see
+ * ProbabilityMatrixKernel.forSize()), so is built separately from src/vector with --add-modules jdk.incubator.vector
+ * (Java 16 or later), and only used if the JVM is run with that module too.
+ * <p/>
+ * P(t) is calculated a vector of columns of 4 rows at a time, keeping the 4 sums in registers over the whole product.
+ * Each element of M v is the sum of a lane-wise product of the row and v. The last few columns (fewer than a vector)
+ * are calculated as ProbabilityMatrixKernel does.
+ *
+ * @author Asif Tamuri (atamuri@nimr.mrc.ac.uk)
+ * @see ProbabilityMatrixKernel
+ */
+final class VectorProbabilityMatrixKernel extends ProbabilityMatrixKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private final int n;
+    private final int vectorEnd; // columns before this are calculated a vector at a time
+    private final double[] UExpLt; // U exp(Lambda t)
+
+    VectorProbabilityMatrixKernel(int matrixSize) {
+        this.n = matrixSize;
+        this.vectorEnd = SPECIES.loopBound(matrixSize);
+        this.UExpLt = new double[n * n];
+    }
+
+    @Override
+    void probabilityMatrix(double[] Pt, double branchLength, double[] lambda, double[] U, double[] UInv) {
+        final int n = this.n;
+        final double[] A = UExpLt;
+        final int step = SPECIES.length();
+
+        for (int k = 0; k < n; k++) {
+            double expLt = Math.exp(branchLength * lambda[k]);
+            for (int i = 0; i < n; i++) A[i * n + k] = expLt * U[i * n + k];
+        }
+
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            final int r0 = i * n, r1 = r0 + n, r2 = r1 + n, r3 = r2 + n;
+
+            for (int j = 0; j < vectorEnd; j += step) {
+                DoubleVector p0 = DoubleVector.zero(SPECIES), p1 = p0, p2 = p0, p3 = p0;
+                for (int k = 0; k < n; k++) {
+                    DoubleVector b = DoubleVector.fromArray(SPECIES, UInv, k * n + j);
+                    p0 = b.fma(DoubleVector.broadcast(SPECIES, A[r0 + k]), p0);
+                    p1 = b.fma(DoubleVector.broadcast(SPECIES, A[r1 + k]), p1);
+                    p2 = b.fma(DoubleVector.broadcast(SPECIES, A[r2 + k]), p2);
+                    p3 = b.fma(DoubleVector.broadcast(SPECIES, A[r3 + k]), p3);
+                }
+                p0.intoArray(Pt, r0 + j);
+                p1.intoArray(Pt, r1 + j);
+                p2.intoArray(Pt, r2 + j);
+                p3.intoArray(Pt, r3 + j);
+            }
+
+            for (int j = vectorEnd; j < n; j++) {
+                double p0 = 0, p1 = 0, p2 = 0, p3 = 0;
+                for (int k = 0; k < n; k++) {
+                    final double b = UInv[k * n + j];
+                    p0 += A[r0 + k] * b;
+                    p1 += A[r1 + k] * b;
+                    p2 += A[r2 + k] * b;
+                    p3 += A[r3 + k] * b;
+                }
+                Pt[r0 + j] = p0;
+                Pt[r1 + j] = p1;
+                Pt[r2 + j] = p2;
+                Pt[r3 + j] = p3;
+            }
+        }
+
+        for (; i < n; i++) {
+            final int r0 = i * n;
+
+            for (int j = 0; j < vectorEnd; j += step) {
+                DoubleVector p0 = DoubleVector.zero(SPECIES);
+                for (int k = 0; k < n; k++) p0 = DoubleVector.fromArray(SPECIES, UInv, k * n + j).fma(DoubleVector.broadcast(SPECIES, A[r0 + k]), p0);
+                p0.intoArray(Pt, r0 + j);
+            }
+
+            for (int j = vectorEnd; j < n; j++) {
+                double p0 = 0;
+                for (int k = 0; k < n; k++) p0 += A[r0 + k] * UInv[k * n + j];
+                Pt[r0 + j] = p0;
+            }
+        }
+
+        for (int j = 0; j < n * n; j++) if (Pt[j] < 0) Pt[j] = 0;
+    }
+
+    @Override
+    void multiply(double[] M, double[] v, double[] out, int n) {
+        final int vectorEnd = SPECIES.loopBound(n);
+        final int step = SPECIES.length();
+
+        for (int i = 0; i < n; i++) {
+            final int row = i * n;
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            int j = 0;
+            for (; j < vectorEnd; j += step) {
+                sum = DoubleVector.fromArray(SPECIES, M, row + j).fma(DoubleVector.fromArray(SPECIES, v, j), sum);
+            }
+
+            double s = sum.reduceLanes(VectorOperators.ADD);
+            for (; j < n; j++) s += v[j] * M[row + j];
+            out[i] = s;
+        }
+    }
+
+    @Override
+    void scatter(double[] Pt, int[] siteCodons, double[] matrix) {
+        for (int i = 0; i < n; i++) {
+            final int row = siteCodons[i] * GeneticCode.CODON_STATES;
+            for (int j = 0; j < n; j++) matrix[row + siteCodons[j]] = Pt[i * n + j];
+        }
+    }
+}